@@ -0,0 +1,51 @@
+package com.hoccer.talk.server;
+
+import com.hoccer.talk.model.*;
+import com.hoccer.talk.server.database.GroupMembershipView;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of the lookups of ITalkServerDatabase
+ * <p/>
+ * Each method starts the lookup and returns immediately, so that
+ * independent lookups can run concurrently instead of one after the
+ * other on the calling thread.
+ */
+public interface AsyncTalkServerDatabase {
+
+    /**
+     * @return the synchronous database the lookups are performed on
+     */
+    public ITalkServerDatabase getDatabase();
+
+    public Future<TalkClient> findClientById(String clientId);
+
+    public Future<Set<String>> existingClientIds(Collection<String> clientIds);
+
+    public Future<TalkMessage> findMessageById(String messageId);
+
+    public Future<TalkDelivery> findDelivery(String messageId, String clientId);
+
+    public Future<List<TalkDelivery>> findDeliveriesFromClientInState(String clientId, String state);
+
+    public Future<TalkPresence> findPresenceForClient(String clientId);
+
+    public Future<TalkRelationship> findRelationshipBetween(String client, String otherClient);
+
+    public Future<TalkGroup> findGroupById(String groupId);
+
+    public Future<List<TalkGroupMember>> findGroupMembersById(String groupId);
+
+    public Future<TalkGroupMember> findGroupMemberForClient(String groupId, String clientId);
+
+    public Future<GroupMembershipView> findGroupMembershipForClient(String groupId, String clientId);
+
+    public Future<TalkEnvironment> findEnvironmentByClientId(String type, String clientId);
+
+    public Future<List<TalkEnvironment>> findEnvironmentsMatching(TalkEnvironment environment);
+
+}
@@ -1,19 +1,26 @@
 package com.hoccer.talk.server;
 
 import com.hoccer.talk.model.*;
+import com.hoccer.talk.server.database.AudienceIndex;
+import com.hoccer.talk.server.database.DatabaseCursor;
+import com.hoccer.talk.server.database.GroupMembershipIndex;
+import com.hoccer.talk.server.database.GroupMembershipView;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Describes the interface of Talk database backends
  * <p/>
- * There currently are two implementations:
+ * There currently are three implementations:
  * <p/>
  * .database.JongoDatabase    -  Jongo-based persistent database
- * .database.OrmLiteDatabase  -  Classical Relational persistent database (e.g. Postgresql) - currently unfinished
+ * .database.OrmLiteDatabase  -  Classical Relational persistent database (e.g. Postgresql)
+ * .database.MemoryDatabase   -  Non-persistent in-memory database for benchmarks and tests
  */
 public interface ITalkServerDatabase {
 
@@ -21,14 +28,23 @@ public interface ITalkServerDatabase {
 
     public List<TalkClient> findAllClients();
 
+    /**
+     * Streams all clients, the cursor must be closed after use
+     */
+    public DatabaseCursor<TalkClient> iterateAllClients();
+
     public TalkClient findClientById(String clientId);
 
+    public Set<String> existingClientIds(Collection<String> clientIds);
+
     public TalkClient findClientByApnsToken(String apnsToken);
 
     public void saveClient(TalkClient client);
 
     public TalkMessage findMessageById(String messageId);
 
+    public List<TalkMessage> findMessagesByIds(Collection<String> messageIds);
+
     public void deleteMessage(TalkMessage message);
 
     public void saveMessage(TalkMessage message);
@@ -37,6 +53,11 @@ public interface ITalkServerDatabase {
 
     public List<TalkDelivery> findDeliveriesInState(String state);
 
+    /**
+     * Streams all deliveries in the given state, the cursor must be closed after use
+     */
+    public DatabaseCursor<TalkDelivery> iterateDeliveriesInState(String state);
+
     public List<TalkDelivery> findDeliveriesForClient(String clientId);
 
     public List<TalkDelivery> findDeliveriesForClientInState(String clientId, String state);
@@ -51,6 +72,20 @@ public interface ITalkServerDatabase {
 
     public void saveDelivery(TalkDelivery delivery);
 
+    public void saveDeliveries(List<TalkDelivery> deliveries);
+
+    /**
+     * Change the state of a delivery if it is still in the expected state
+     *
+     * @return true if the delivery was in the expected state and has been updated
+     */
+    public boolean updateDeliveryState(String messageId, String receiverId,
+                                       String expectedState, String newState, Date timeChanged);
+
+    public void updateDeliveryTimeUpdatedIn(String messageId, String receiverId, Date timeUpdatedIn);
+
+    public void updateDeliveryTimeUpdatedOut(String messageId, String receiverId, Date timeUpdatedOut);
+
     public List<TalkToken> findTokensByClient(String clientId);
 
     public TalkToken findTokenByPurposeAndSecret(String purpose, String secret);
@@ -65,10 +100,20 @@ public interface ITalkServerDatabase {
 
     public List<TalkPresence> findPresencesChangedAfter(String clientId, Date lastKnown);
 
+    /**
+     * Finds the presences of the given clients in one go, clients without a presence are left out
+     */
+    public List<TalkPresence> findPresencesForClients(Collection<String> clientIds);
+
     public TalkKey findKey(String clientId, String keyId);
 
     public List<TalkKey> findKeys(String clientId);
 
+    /**
+     * Streams all keys published before the given time, the cursor must be closed after use
+     */
+    public DatabaseCursor<TalkKey> iterateKeysOlderThan(Date timestamp);
+
     public void deleteKey(TalkKey key);
 
     public void saveKey(TalkKey key);
@@ -88,6 +133,11 @@ public interface ITalkServerDatabase {
 
     public void saveRelationship(TalkRelationship relationship);
 
+    /**
+     * Returns the in-memory index of presence audiences, kept current by relationship and membership changes
+     */
+    public AudienceIndex getAudienceIndex();
+
     public TalkGroup findGroupById(String groupId);
 
     public void deleteGroup(TalkGroup group);
@@ -112,8 +162,23 @@ public interface ITalkServerDatabase {
 
     public TalkGroupMember findGroupMemberForClient(String groupId, String clientId);
 
+    /**
+     * Returns only groupId, clientId, state and role of the membership, or null if there is none
+     */
+    public GroupMembershipView findGroupMembershipForClient(String groupId, String clientId);
+
+    /**
+     * Returns only groupId, clientId, state and role of all memberships of the client
+     */
+    public List<GroupMembershipView> findGroupMembershipsForClient(String clientId);
+
     public void saveGroupMember(TalkGroupMember groupMember);
 
+    /**
+     * Returns the in-memory index of all group memberships, kept current by saveGroupMember()
+     */
+    public GroupMembershipIndex getGroupMembershipIndex();
+
     public void saveEnvironment(TalkEnvironment environment);
 
     public TalkEnvironment findEnvironmentByClientId(String type, String clientId);
@@ -124,7 +189,28 @@ public interface ITalkServerDatabase {
 
     public void deleteEnvironment(TalkEnvironment environment);
 
+    /**
+     * Deletes spent and expired tokens and relationships reset to none long ago
+     * <p/>
+     * Backends that expire documents by themselves only purge what they do not cover.
+     *
+     * @return number of entities deleted
+     */
+    public int purgeExpired(Date now);
+
+    /**
+     * Finds environments that have not been updated in time
+     * <p/>
+     * These are not purged, they need to be destroyed like any other environment.
+     */
+    public List<TalkEnvironment> findExpiredEnvironments(Date now);
+
     public boolean ping();
 
     public void reportPing();
+
+    /**
+     * Writes out everything still queued and stops background work
+     */
+    public void shutdown();
 }
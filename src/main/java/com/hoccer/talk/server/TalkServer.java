@@ -18,6 +18,7 @@ import com.hoccer.talk.model.TalkEnvironment;
 import com.hoccer.talk.model.TalkPresence;
 import com.hoccer.talk.rpc.ITalkRpcServer;
 import com.hoccer.talk.server.cleaning.CleaningAgent;
+import com.hoccer.talk.server.database.AsyncDatabaseAdapter;
 import com.hoccer.talk.server.database.DatabaseHealthCheck;
 import com.hoccer.talk.server.delivery.DeliveryAgent;
 import com.hoccer.talk.server.filecache.FilecacheClient;
@@ -71,6 +72,11 @@ public class TalkServer {
      */
     ITalkServerDatabase mDatabase;
 
+    /**
+     * Asynchronous lookups on the database
+     */
+    AsyncTalkServerDatabase mAsyncDatabase;
+
     /**
      * Stats collector
      */
@@ -125,13 +131,21 @@ public class TalkServer {
      * Create and initialize a Hoccer Talk server
      */
     public TalkServer(TalkServerConfiguration configuration, ITalkServerDatabase database) {
+        this(configuration, database, new MetricRegistry());
+    }
+
+    /**
+     * Create and initialize a Hoccer Talk server using the given metrics registry
+     */
+    public TalkServer(TalkServerConfiguration configuration, ITalkServerDatabase database, MetricRegistry metrics) {
         mConfiguration = configuration;
         mDatabase = database;
+        mAsyncDatabase = new AsyncDatabaseAdapter(database, TalkServerConfiguration.THREADS_DATABASE_ASYNC);
 
         mJsonMapper = createObjectMapper(new JsonFactory());
         mBsonMapper = createObjectMapper(new BsonFactory());
 
-        mMetricsRegistry = new MetricRegistry();
+        mMetricsRegistry = metrics;
         initializeMetrics();
         mHealthRegistry = new HealthCheckRegistry();
         initializeHealthChecks();
@@ -192,6 +206,13 @@ public class TalkServer {
         return mDatabase;
     }
 
+    /**
+     * @return the asynchronous database accessor of this server
+     */
+    public AsyncTalkServerDatabase getAsyncDatabase() {
+        return mAsyncDatabase;
+    }
+
     /**
      * @return the stats collector for this server
      */
@@ -6,7 +6,9 @@ import org.apache.log4j.Logger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.MessageFormat;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 /**
  * Encapsulation of server configuration
@@ -25,6 +27,7 @@ public class TalkServerConfiguration {
     public static final int THREADS_PUSH = 1;
     public static final int THREADS_PING = 2; // XXX HIGHER COUNT?
     public static final int THREADS_CLEANING = 4;
+    public static final int THREADS_DATABASE_ASYNC = 16;
 
     public static final int PING_INTERVAL = 300; // in seconds
     public static final boolean PERFORM_PING_AT_INTERVALS = false;
@@ -46,8 +49,25 @@ public class TalkServerConfiguration {
     private int     mApnsInvalidateDelay = 30;
     private int     mApnsInvalidateInterval = 3600;
 
+    private int mDeliveryLanes = Runtime.getRuntime().availableProcessors();
+    private int mUpdateLanes = 1;
+    private int mDeliveryBatchSize = 50;
+
     private String mDatabaseBackend = "jongo";
+    private boolean mDatabaseCacheEnabled = false;
+    private int mDatabaseCacheSize = 10000;
+    private int mDatabaseSlowQueryThreshold = 100; // in milliseconds
+    private int mDatabaseSlowQueryLogSize = 200;
     private String mJongoDb = "talk";
+    private int mJongoBatchSize = 500;
+    private boolean mJongoEnsureIndexes = true;
+    private int mJongoProfileSlowMs = 0; // profiling disabled
+    private int mJongoProfileSampleInterval = 300;
+    private Map<String, String> mJongoWriteConcerns = new TreeMap<String, String>(); // overrides of the durability tiers
+    private String mOrmliteUrl = "jdbc:postgresql://localhost/talk";
+    private String mOrmliteUser = "talk";
+    private String mOrmlitePassword = "talk";
+    private int mOrmliteMaxConnectionsFree = 16;
 
     private int mCleanupAllClientsDelay = 7200; // 2 hours //300;
     private int mCleanupAllClientsInterval = 60 * 60 * 24; // once a day //900;
@@ -84,7 +104,19 @@ public class TalkServerConfiguration {
                         MessageFormat.format("\n   * listen port:                        ''{0}''", Long.toString(mListenPort)) +
                         "\n - Database Configuration:" +
                         MessageFormat.format("\n   * database backend:                   ''{0}''", mDatabaseBackend) +
+                        MessageFormat.format("\n   * database cache enabled:             ''{0}''", mDatabaseCacheEnabled) +
+                        MessageFormat.format("\n   * database cache size (per entity):   ''{0}''", Long.toString(mDatabaseCacheSize)) +
+                        MessageFormat.format("\n   * database slow query threshold (ms): ''{0}''", Long.toString(mDatabaseSlowQueryThreshold)) +
+                        MessageFormat.format("\n   * database slow query log size:       ''{0}''", Long.toString(mDatabaseSlowQueryLogSize)) +
                         MessageFormat.format("\n   * jongo database:                     ''{0}''", mJongoDb) +
+                        MessageFormat.format("\n   * jongo scan batch size:              ''{0}''", Long.toString(mJongoBatchSize)) +
+                        MessageFormat.format("\n   * jongo ensure indexes:               ''{0}''", mJongoEnsureIndexes) +
+                        MessageFormat.format("\n   * jongo profile slow ms (0=off):      ''{0}''", Long.toString(mJongoProfileSlowMs)) +
+                        MessageFormat.format("\n   * jongo profile sample interval (s):  ''{0}''", Long.toString(mJongoProfileSampleInterval)) +
+                        MessageFormat.format("\n   * jongo write concerns:               ''{0}''", mJongoWriteConcerns) +
+                        MessageFormat.format("\n   * ormlite url:                        ''{0}''", mOrmliteUrl) +
+                        MessageFormat.format("\n   * ormlite user:                       ''{0}''", mOrmliteUser) +
+                        MessageFormat.format("\n   * ormlite max free connections:       ''{0}''", Long.toString(mOrmliteMaxConnectionsFree)) +
                         "\n - Push Configuration:" +
                         MessageFormat.format("\n   * push rate limit:                    ''{0}''", Long.toString(mPushRateLimit)) +
                         "\n   - APNS:" +
@@ -97,6 +129,10 @@ public class TalkServerConfiguration {
                         "\n   - GCM:" +
                         MessageFormat.format("\n     * gcm enabled:                      ''{0}''", mGcmEnabled) +
                         MessageFormat.format("\n     * gcm api key (length):             ''{0}''", mGcmApiKey.length()) +
+                        "\n - Agent Configuration:" +
+                        MessageFormat.format("\n   * delivery lanes:                     ''{0}''", Long.toString(mDeliveryLanes)) +
+                        MessageFormat.format("\n   * update lanes:                       ''{0}''", Long.toString(mUpdateLanes)) +
+                        MessageFormat.format("\n   * delivery batch size:                ''{0}''", Long.toString(mDeliveryBatchSize)) +
                         "\n - Cleaning Agent Configuration:" +
                         MessageFormat.format("\n   * clients cleanup delay (in s):       ''{0}''", Long.toString(mCleanupAllClientsDelay)) +
                         MessageFormat.format("\n   * clients cleanup interval (in s):    ''{0}''", Long.toString(mCleanupAllClientsInterval)) +
@@ -114,6 +150,7 @@ public class TalkServerConfiguration {
                         MessageFormat.format("\n   * PushAgent     Threads Poolsize:     ''{0}''", THREADS_PUSH) +
                         MessageFormat.format("\n   * PingAgent     Threads Poolsize:     ''{0}''", THREADS_PING) +
                         MessageFormat.format("\n   * UpdateAgent   Threads Poolsize:     ''{0}''", THREADS_UPDATE) +
+                        MessageFormat.format("\n   * AsyncDatabase Threads Poolsize:     ''{0}''", THREADS_DATABASE_ASYNC) +
                         MessageFormat.format("\n   * Ping interval (in s):               ''{0}''", PING_INTERVAL) +
                         MessageFormat.format("\n   * perform ping at intervals:          ''{0}''", PERFORM_PING_AT_INTERVALS) +
                         "\n - Debugging:" +
@@ -128,9 +165,29 @@ public class TalkServerConfiguration {
 
         // Database
         mDatabaseBackend = properties.getProperty(PROPERTY_PREFIX + ".db.backend", mDatabaseBackend);
+        mDatabaseCacheEnabled = Boolean.valueOf(properties.getProperty(PROPERTY_PREFIX + ".db.cache.enabled", Boolean.toString(mDatabaseCacheEnabled)));
+        mDatabaseCacheSize = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".db.cache.size", Integer.toString(mDatabaseCacheSize)));
+        mDatabaseSlowQueryThreshold = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".db.slowQuery.threshold", Integer.toString(mDatabaseSlowQueryThreshold)));
+        mDatabaseSlowQueryLogSize = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".db.slowQuery.logSize", Integer.toString(mDatabaseSlowQueryLogSize)));
 
         // Jongo
         mJongoDb = properties.getProperty(PROPERTY_PREFIX + ".jongo.db", mJongoDb);
+        mJongoBatchSize = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".jongo.batchSize", Integer.toString(mJongoBatchSize)));
+        mJongoEnsureIndexes = Boolean.valueOf(properties.getProperty(PROPERTY_PREFIX + ".jongo.ensureIndexes", Boolean.toString(mJongoEnsureIndexes)));
+        mJongoProfileSlowMs = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".jongo.profileSlowMs", Integer.toString(mJongoProfileSlowMs)));
+        mJongoProfileSampleInterval = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".jongo.profileSampleInterval", Integer.toString(mJongoProfileSampleInterval)));
+        String writeConcernPrefix = PROPERTY_PREFIX + ".jongo.writeConcern.";
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(writeConcernPrefix)) {
+                mJongoWriteConcerns.put(name.substring(writeConcernPrefix.length()), properties.getProperty(name));
+            }
+        }
+
+        // Ormlite
+        mOrmliteUrl = properties.getProperty(PROPERTY_PREFIX + ".ormlite.url", mOrmliteUrl);
+        mOrmliteUser = properties.getProperty(PROPERTY_PREFIX + ".ormlite.user", mOrmliteUser);
+        mOrmlitePassword = properties.getProperty(PROPERTY_PREFIX + ".ormlite.password", mOrmlitePassword);
+        mOrmliteMaxConnectionsFree = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".ormlite.maxConnectionsFree", Integer.toString(mOrmliteMaxConnectionsFree)));
 
         // Push
         mPushRateLimit = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".push.rateLimit", Integer.toString(mPushRateLimit)));
@@ -147,6 +204,11 @@ public class TalkServerConfiguration {
         mGcmEnabled = Boolean.valueOf(properties.getProperty(PROPERTY_PREFIX + ".gcm.enabled", Boolean.toString(mGcmEnabled)));
         mGcmApiKey  = properties.getProperty(PROPERTY_PREFIX + ".gcm.apikey", mGcmApiKey);
 
+        // Agents
+        mDeliveryLanes = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".delivery.lanes", Integer.toString(mDeliveryLanes)));
+        mUpdateLanes = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".update.lanes", Integer.toString(mUpdateLanes)));
+        mDeliveryBatchSize = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".delivery.batchSize", Integer.toString(mDeliveryBatchSize)));
+
         // Cleanup
         mCleanupAllClientsDelay = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".cleanup.allClientsDelay", Integer.toString(mCleanupAllClientsDelay)));
         mCleanupAllClientsInterval = Integer.valueOf(properties.getProperty(PROPERTY_PREFIX + ".cleanup.allClientsInterval", Integer.toString(mCleanupAllClientsInterval)));
@@ -177,10 +239,65 @@ public class TalkServerConfiguration {
         return mDatabaseBackend;
     }
 
+    public boolean isDatabaseCacheEnabled() {
+        return mDatabaseCacheEnabled;
+    }
+
+    public int getDatabaseCacheSize() {
+        return mDatabaseCacheSize;
+    }
+
+    public int getDatabaseSlowQueryThreshold() {
+        return mDatabaseSlowQueryThreshold;
+    }
+
+    public int getDatabaseSlowQueryLogSize() {
+        return mDatabaseSlowQueryLogSize;
+    }
+
     public String getJongoDb() {
         return mJongoDb;
     }
 
+    public int getJongoBatchSize() {
+        return mJongoBatchSize;
+    }
+
+    public boolean isJongoEnsureIndexes() {
+        return mJongoEnsureIndexes;
+    }
+
+    /**
+     * @return durability tiers by [collection].[operation], [collection] or "default"
+     */
+    public Map<String, String> getJongoWriteConcerns() {
+        return mJongoWriteConcerns;
+    }
+
+    public int getJongoProfileSlowMs() {
+        return mJongoProfileSlowMs;
+    }
+
+    public int getJongoProfileSampleInterval() {
+        return mJongoProfileSampleInterval;
+    }
+
+    public String getOrmliteUrl() {
+        return mOrmliteUrl;
+    }
+
+    public String getOrmliteUser() {
+        return mOrmliteUser;
+    }
+
+    public String getOrmlitePassword() {
+        return mOrmlitePassword;
+    }
+
+    public int getOrmliteMaxConnectionsFree() {
+        return mOrmliteMaxConnectionsFree;
+    }
+
     public int getPushRateLimit() {
         return mPushRateLimit;
     }
@@ -231,6 +348,18 @@ public class TalkServerConfiguration {
         return url;
     }
 
+    public int getDeliveryLanes() {
+        return mDeliveryLanes;
+    }
+
+    public int getUpdateLanes() {
+        return mUpdateLanes;
+    }
+
+    public int getDeliveryBatchSize() {
+        return mDeliveryBatchSize;
+    }
+
     public int getCleanupAllClientsDelay() {
         return mCleanupAllClientsDelay;
     }
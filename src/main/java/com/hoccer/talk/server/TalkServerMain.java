@@ -7,12 +7,16 @@ import com.codahale.metrics.health.HealthCheckRegistry;
 import com.codahale.metrics.servlets.HealthCheckServlet;
 import com.codahale.metrics.servlets.MetricsServlet;
 import com.hoccer.scm.GitInfo;
+import com.hoccer.talk.server.database.CachingDatabase;
+import com.hoccer.talk.server.database.InstrumentedDatabase;
 import com.hoccer.talk.server.database.JongoDatabase;
+import com.hoccer.talk.server.database.MemoryDatabase;
 import com.hoccer.talk.server.database.OrmliteDatabase;
 import com.hoccer.talk.server.rpc.TalkRpcConnectionHandler;
 import com.hoccer.talk.server.cryptoutils.*;
 import com.hoccer.talk.servlets.CertificateInfoServlet;
 import com.hoccer.talk.servlets.ServerInfoServlet;
+import com.hoccer.talk.servlets.SlowQueryServlet;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -56,15 +60,33 @@ public class TalkServerMain {
             }
         }
 
+        // metrics are shared by the database and the server
+        MetricRegistry metrics = new MetricRegistry();
+
         // select and instantiate database backend
-        ITalkServerDatabase db = initializeDatabase(config);
+        ITalkServerDatabase db = initializeDatabase(config, metrics);
+
+        // time all database calls as seen by the server
+        InstrumentedDatabase instrumentedDb = new InstrumentedDatabase(db, metrics,
+                config.getDatabaseSlowQueryThreshold(), config.getDatabaseSlowQueryLogSize());
+        db = instrumentedDb.getDatabase();
         db.reportPing();
 
+        // flush the database when the process is stopped
+        final ITalkServerDatabase shutdownDb = db;
+        Runtime.getRuntime().addShutdownHook(new Thread("database-shutdown") {
+            @Override
+            public void run() {
+                LOG.info("Shutting down database");
+                shutdownDb.shutdown();
+            }
+        });
+
         // log about server init
         LOG.info("Initializing talk server");
 
         // create the talk server
-        TalkServer talkServer = new TalkServer(config, db);
+        TalkServer talkServer = new TalkServer(config, db, metrics);
 
         // log about jetty init
         LOG.info("Initializing jetty");
@@ -87,8 +109,10 @@ public class TalkServerMain {
         ServletContextHandler serverInfoContextHandler = new ServletContextHandler();
         serverInfoContextHandler.setContextPath("/server");
         serverInfoContextHandler.setAttribute("server", talkServer);
+        serverInfoContextHandler.setAttribute("instrumentedDatabase", instrumentedDb);
         serverInfoContextHandler.addServlet(ServerInfoServlet.class, "/info");
         serverInfoContextHandler.addServlet(CertificateInfoServlet.class, "/certificates");
+        serverInfoContextHandler.addServlet(SlowQueryServlet.class, "/slowqueries");
 
         // handler for talk websocket connections
         WebSocketHandler clientHandler = new TalkRpcConnectionHandler(talkServer);
@@ -160,13 +184,24 @@ public class TalkServerMain {
         return configuration;
     }
 
-    private ITalkServerDatabase initializeDatabase(TalkServerConfiguration config) {
+    private ITalkServerDatabase initializeDatabase(TalkServerConfiguration config, MetricRegistry metrics) {
         LOG.info("Determining database");
+        ITalkServerDatabase db = createDatabaseBackend(config, metrics);
+        if (config.isDatabaseCacheEnabled()) {
+            LOG.info("Enabling database cache");
+            db = new CachingDatabase(db, config.getDatabaseCacheSize(), metrics);
+        }
+        return db;
+    }
+
+    private ITalkServerDatabase createDatabaseBackend(TalkServerConfiguration config, MetricRegistry metrics) {
         String backend = config.getDatabaseBackend();
         if ("jongo".equals(backend)) {
-            return new JongoDatabase(config);
+            return new JongoDatabase(config, metrics);
         } else if ("ormlite".equals(backend)) {
-            return new OrmliteDatabase();
+            return new OrmliteDatabase(config);
+        } else if ("memory".equals(backend)) {
+            return new MemoryDatabase();
         }
         throw new RuntimeException("Unknown database backend: " + backend);
     }
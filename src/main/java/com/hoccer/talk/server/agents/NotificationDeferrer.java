@@ -7,19 +7,69 @@ import java.util.ArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+/**
+ * Base class for agents that defer notifications until the end of an RPC request
+ * <p/>
+ * Work can optionally be keyed (e.g. by client id). When the deferrer is
+ * created with more than one lane, keyed work is striped across single-threaded
+ * lanes so that all work for the same key runs in order on the same lane while
+ * work for different keys runs in parallel. Unkeyed work always goes to the pool.
+ */
 public class NotificationDeferrer {
 
     private final Executor mExecutor;
 
+    private final Executor[] mLanes;
+
     public NotificationDeferrer(int poolSize, String poolName) {
+        this(poolSize, 1, poolName);
+    }
+
+    public NotificationDeferrer(int poolSize, int lanes, String poolName) {
         mExecutor = Executors.newScheduledThreadPool(
                 poolSize,
                 new NamedThreadFactory(poolName)
         );
+        if (lanes > 1) {
+            mLanes = new Executor[lanes];
+            for (int i = 0; i < lanes; i++) {
+                mLanes[i] = Executors.newSingleThreadExecutor(
+                        new NamedThreadFactory(poolName + "-lane-" + i)
+                );
+            }
+        } else {
+            mLanes = null;
+        }
     }
 
     protected final Logger LOG = Logger.getLogger(getClass());
 
+    /**
+     * Notification generator bound to a key that determines its lane
+     */
+    private static class KeyedNotification implements Runnable {
+        private final String mKey;
+        private final Runnable mNotificationGenerator;
+
+        KeyedNotification(String key, Runnable notificationGenerator) {
+            mKey = key;
+            mNotificationGenerator = notificationGenerator;
+        }
+
+        @Override
+        public void run() {
+            mNotificationGenerator.run();
+        }
+    }
+
+    public boolean isKeyed() {
+        return mLanes != null;
+    }
+
+    public int getLaneCount() {
+        return mLanes == null ? 1 : mLanes.length;
+    }
+
     protected void queueOrExecute(ThreadLocal<ArrayList<Runnable>> context, Runnable notificationGenerator) {
         // TODO: Maybe a Queue instead of an ArrayList would be more appropriate here.
 
@@ -29,6 +79,28 @@ public class NotificationDeferrer {
             queue.add(notificationGenerator);
         } else {
             LOG.trace("context is currently NOT set. Immediately executing notification generators");
+            dispatch(notificationGenerator);
+        }
+    }
+
+    protected void queueOrExecute(ThreadLocal<ArrayList<Runnable>> context, String key, Runnable notificationGenerator) {
+        queueOrExecute(context, new KeyedNotification(key, notificationGenerator));
+    }
+
+    protected void execute(Runnable notificationGenerator) {
+        dispatch(notificationGenerator);
+    }
+
+    protected void execute(String key, Runnable notificationGenerator) {
+        dispatch(new KeyedNotification(key, notificationGenerator));
+    }
+
+    private void dispatch(Runnable notificationGenerator) {
+        if (mLanes != null && notificationGenerator instanceof KeyedNotification) {
+            String key = ((KeyedNotification) notificationGenerator).mKey;
+            int lane = (key.hashCode() & Integer.MAX_VALUE) % mLanes.length;
+            mLanes[lane].execute(notificationGenerator);
+        } else {
             mExecutor.execute(notificationGenerator);
         }
     }
@@ -41,7 +113,7 @@ public class NotificationDeferrer {
             if (!queue.isEmpty()) {
                 LOG.trace("  * " + queue.size() + " notification generators were queued. flushing them...");
                 for (Runnable notificationGenerator : queue) {
-                    mExecutor.execute(notificationGenerator);
+                    dispatch(notificationGenerator);
                 }
             } else {
                 LOG.trace("  * No notification generators were queued - nothing to do.");
@@ -4,7 +4,9 @@ import com.hoccer.talk.model.*;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServer;
 import com.hoccer.talk.server.TalkServerConfiguration;
+import com.hoccer.talk.server.database.DatabaseCursor;
 import com.hoccer.talk.server.filecache.FilecacheClient;
+import com.hoccer.talk.server.rpc.EnvironmentTeardown;
 import com.hoccer.talk.util.NamedThreadFactory;
 import org.apache.log4j.Logger;
 
@@ -28,30 +30,32 @@ public class CleaningAgent {
 
     private final static Logger LOG = Logger.getLogger(CleaningAgent.class);
 
-    @SuppressWarnings("FieldCanBeLocal")
     private final TalkServer mServer;
     private final TalkServerConfiguration mConfig;
     private final ITalkServerDatabase mDatabase;
     private final FilecacheClient mFilecache;
+    private final EnvironmentTeardown mEnvironmentTeardown;
     private final ScheduledExecutorService mExecutor;
 
     private static final int KEY_LIFE_TIME = 3; // in months
-    private static final int RELATIONSHIP_LIFE_TIME = 3; // in months
+
+    private static final int ENVIRONMENT_CLEANUP_INTERVAL = 3600; // in seconds
 
     public CleaningAgent(TalkServer server) {
         mServer = server;
         mConfig = mServer.getConfiguration();
         mDatabase = mServer.getDatabase();
         mFilecache = mServer.getFilecacheClient();
+        mEnvironmentTeardown = new EnvironmentTeardown(mServer);
         mExecutor = Executors.newScheduledThreadPool(
             TalkServerConfiguration.THREADS_CLEANING,
             new NamedThreadFactory("cleaning-agent")
         );
-        LOG.info("Cleaning clients scheduling will start in '" + mConfig.getCleanupAllClientsDelay() + "' seconds.");
+        LOG.info("Cleaning expired data scheduling will start in '" + mConfig.getCleanupAllClientsDelay() + "' seconds.");
         mExecutor.schedule(new Runnable() {
             @Override
             public void run() {
-                scheduleCleanAllClients();
+                scheduleCleanExpired();
             }
         }, mConfig.getCleanupAllClientsDelay(), TimeUnit.SECONDS);
         LOG.info("Cleaning deliveries scheduling will start in '" + mConfig.getCleanupAllDeliveriesDelay() + "' seconds.");
@@ -61,18 +65,11 @@ public class CleaningAgent {
                 scheduleCleanAllDeliveries();
             }
         }, mConfig.getCleanupAllDeliveriesDelay(), TimeUnit.SECONDS);
-
+        scheduleCleanExpiredEnvironments();
     }
 
     // TODO: Also clean groups (normal and nearby)
 
-    public void cleanClientData(final String clientId) {
-        LOG.debug("cleaning client " + clientId);
-        doCleanKeysForClient(clientId);
-        doCleanTokensForClient(clientId);
-        doCleanRelationshipsForClient(clientId);
-    }
-
     private void scheduleCleanAllDeliveries() {
         LOG.info("scheduling deliveries cleanup in '" + mConfig.getCleanupAllDeliveriesInterval() + "' seconds.");
         mExecutor.schedule(new Runnable() {
@@ -83,16 +80,26 @@ public class CleaningAgent {
         }, mConfig.getCleanupAllDeliveriesInterval(), TimeUnit.SECONDS);
     }
 
-    private void scheduleCleanAllClients() {
-        LOG.info("scheduling client cleanup in '" + mConfig.getCleanupAllClientsInterval() + "' seconds.");
+    private void scheduleCleanExpired() {
+        LOG.info("scheduling expired data cleanup in '" + mConfig.getCleanupAllClientsInterval() + "' seconds.");
         mExecutor.schedule(new Runnable() {
             @Override
             public void run() {
-                doCleanAllClients();
+                doCleanExpired();
             }
         }, mConfig.getCleanupAllClientsInterval(), TimeUnit.SECONDS);
     }
 
+    private void scheduleCleanExpiredEnvironments() {
+        LOG.info("scheduling expired environments cleanup in '" + ENVIRONMENT_CLEANUP_INTERVAL + "' seconds.");
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                doCleanExpiredEnvironments();
+            }
+        }, ENVIRONMENT_CLEANUP_INTERVAL, TimeUnit.SECONDS);
+    }
+
     public void cleanFinishedDelivery(final TalkDelivery finishedDelivery) {
         mExecutor.execute(new Runnable() {
             @Override
@@ -102,47 +109,71 @@ public class CleaningAgent {
         });
     }
 
-    private void doCleanAllClients() {
+    /**
+     * Tokens and relationships expire by time alone and are purged by the
+     * database, mongodb does this by itself using TTL indexes.
+     * Only outdated keys need a look at the presence of their client.
+     */
+    private void doCleanExpired() {
+        long startTime = System.currentTimeMillis();
+        LOG.info("Cleaning expired data...");
+        int purged = mDatabase.purgeExpired(new Date());
+        int keysCleaned = doCleanOutdatedKeys();
+        long endTime = System.currentTimeMillis();
+        LOG.info("Cleaning of '" + purged + "' expired entities and '" + keysCleaned + "' keys done (took '" + (endTime - startTime) + "ms'). rescheduling next run...");
+        scheduleCleanExpired();
+    }
+
+    /**
+     * Environments not updated in time are destroyed like the client
+     * would, so their clients leave the nearby groups.
+     */
+    private void doCleanExpiredEnvironments() {
         long startTime = System.currentTimeMillis();
-        LOG.info("Cleaning all clients. Determining list of clients...");
-        List<TalkClient> allClients = mDatabase.findAllClients();
-        LOG.info("Cleaning '" + allClients.size() + "' clients...");
-        for (TalkClient client : allClients) {
-            cleanClientData(client.getClientId());
+        int environmentsCleaned = 0;
+        try {
+            List<TalkEnvironment> environments = mDatabase.findExpiredEnvironments(new Date());
+            for (TalkEnvironment environment : environments) {
+                LOG.debug("destroying expired environment of client " + environment.getClientId());
+                mEnvironmentTeardown.destroy(environment);
+                environmentsCleaned++;
+            }
+        } catch (Exception e) {
+            LOG.error("error destroying expired environments", e);
         }
         long endTime = System.currentTimeMillis();
-        LOG.info("Cleaning of '" + allClients.size() + "' clients done (took '" + (endTime - startTime) + "ms'). rescheduling next run...");
-        scheduleCleanAllClients();
+        if (environmentsCleaned > 0) {
+            LOG.info("Cleaning of '" + environmentsCleaned + "' expired environments done (took '" + (endTime - startTime) + "ms').");
+        }
+        scheduleCleanExpiredEnvironments();
     }
 
     private void doCleanAllFinishedDeliveries() {
         long startTime = System.currentTimeMillis();
         LOG.info("Cleaning all finished deliveries...");
 
-        List<TalkDelivery> abortedDeliveries = mDatabase.findDeliveriesInState(TalkDelivery.STATE_ABORTED);
-        if (!abortedDeliveries.isEmpty()) {
-            LOG.info("cleanup found " + abortedDeliveries.size() + " aborted deliveries");
-            for (TalkDelivery delivery : abortedDeliveries) {
-                doCleanFinishedDelivery(delivery);
+        int totalDeliveriesCleaned = doCleanAllDeliveriesInState(TalkDelivery.STATE_ABORTED)
+                + doCleanAllDeliveriesInState(TalkDelivery.STATE_FAILED)
+                + doCleanAllDeliveriesInState(TalkDelivery.STATE_CONFIRMED);
+        long endTime = System.currentTimeMillis();
+        LOG.info("Cleaning of '" + totalDeliveriesCleaned + "' deliveries done (took '" + (endTime - startTime) + "ms'). rescheduling next run...");
+    }
+
+    private int doCleanAllDeliveriesInState(String state) {
+        int deliveriesCleaned = 0;
+        DatabaseCursor<TalkDelivery> deliveries = mDatabase.iterateDeliveriesInState(state);
+        try {
+            while (deliveries.hasNext()) {
+                doCleanFinishedDelivery(deliveries.next());
+                deliveriesCleaned++;
             }
+        } finally {
+            deliveries.close();
         }
-        List<TalkDelivery> failedDeliveries = mDatabase.findDeliveriesInState(TalkDelivery.STATE_FAILED);
-        if (!failedDeliveries.isEmpty()) {
-            LOG.info("cleanup found " + failedDeliveries.size() + " failed deliveries");
-            for (TalkDelivery delivery : failedDeliveries) {
-                doCleanFinishedDelivery(delivery);
-            }
+        if (deliveriesCleaned > 0) {
+            LOG.info("cleanup found " + deliveriesCleaned + " " + state + " deliveries");
         }
-        List<TalkDelivery> confirmedDeliveries = mDatabase.findDeliveriesInState(TalkDelivery.STATE_CONFIRMED);
-        if (!confirmedDeliveries.isEmpty()) {
-            LOG.info("cleanup found " + confirmedDeliveries.size() + " confirmed deliveries");
-            for (TalkDelivery delivery : confirmedDeliveries) {
-                doCleanFinishedDelivery(delivery);
-            }
-        }
-        int totalDeliveriesCleaned = abortedDeliveries.size() + failedDeliveries.size() + confirmedDeliveries.size();
-        long endTime = System.currentTimeMillis();
-        LOG.info("Cleaning of '" + totalDeliveriesCleaned + "' deliveries done (took '" + (endTime - startTime) + "ms'). rescheduling next run...");
+        return deliveriesCleaned;
     }
 
     private void doCleanFinishedDelivery(TalkDelivery finishedDelivery) {
@@ -160,7 +191,7 @@ public class CleaningAgent {
             doCleanDeliveriesForMessage(messageId, null);
         }
         // always delete the ACKed delivery
-        mDatabase.deleteDelivery(finishedDelivery);
+        doDeleteDelivery(finishedDelivery);
     }
 
     private void doCleanDeliveriesForMessage(String messageId, TalkMessage message) {
@@ -169,7 +200,7 @@ public class CleaningAgent {
         for (TalkDelivery delivery : deliveries) {
             // confirmed and failed deliveries can always be deleted
             if (delivery.isFinished()) {
-                mDatabase.deleteDelivery(delivery);
+                doDeleteDelivery(delivery);
                 continue;
             }
             keepMessage = true;
@@ -179,71 +210,36 @@ public class CleaningAgent {
         }
     }
 
-    private void doCleanKeysForClient(String clientId) {
-        LOG.debug("cleaning keys for client " + clientId);
-
-        Date now = new Date();
+    private int doCleanOutdatedKeys() {
         Calendar cal = new GregorianCalendar();
-        cal.setTime(now);
+        cal.setTime(new Date());
         cal.add(Calendar.MONTH, -KEY_LIFE_TIME);
 
-        TalkPresence presence = mDatabase.findPresenceForClient(clientId);
-        List<TalkKey> keys = mDatabase.findKeys(clientId);
-        for (TalkKey key : keys) {
-            if (key.getKeyId().equals(presence.getKeyId())) {
-                LOG.debug("keeping " + key.getKeyId() + " because it is used");
-                continue;
+        int keysCleaned = 0;
+        DatabaseCursor<TalkKey> keys = mDatabase.iterateKeysOlderThan(cal.getTime());
+        try {
+            while (keys.hasNext()) {
+                TalkKey key = keys.next();
+                TalkPresence presence = mDatabase.findPresenceForClient(key.getClientId());
+                if (presence != null && key.getKeyId().equals(presence.getKeyId())) {
+                    LOG.debug("keeping " + key.getKeyId() + " because it is used");
+                    continue;
+                }
+                LOG.debug("deleting key " + key.getKeyId());
+                mDatabase.deleteKey(key);
+                keysCleaned++;
             }
-            if (!cal.after(key.getTimestamp())) {
-                LOG.debug("keeping " + key.getKeyId() + " because it is recent");
-                continue;
-            }
-            LOG.debug("deleting key " + key.getKeyId());
-            mDatabase.deleteKey(key);
+        } finally {
+            keys.close();
         }
+        return keysCleaned;
     }
 
-    private void doCleanTokensForClient(String clientId) {
-        LOG.debug("cleaning tokens for client " + clientId);
-
-        Date now = new Date();
-        int numSpent = 0;
-        int numExpired = 0;
-        List<TalkToken> tokens = mDatabase.findTokensByClient(clientId);
-        for (TalkToken token : tokens) {
-            if (token.getState().equals(TalkToken.STATE_SPENT)) {
-                numSpent++;
-                mDatabase.deleteToken(token);
-                continue;
-            }
-            if (token.getExpiryTime().before(now)) {
-                numExpired++;
-                mDatabase.deleteToken(token);
-            }
-        }
-        if (numSpent > 0) {
-            LOG.debug("deleted " + numSpent + " spent tokens");
-        }
-        if (numExpired > 0) {
-            LOG.debug("deleted " + numExpired + " expired tokens");
-        }
-    }
-
-    private void doCleanRelationshipsForClient(String clientId) {
-        LOG.debug("cleaning relationships for client " + clientId);
-
-        Date now = new Date();
-        Calendar cal = new GregorianCalendar();
-        cal.setTime(now);
-        cal.add(Calendar.MONTH, -RELATIONSHIP_LIFE_TIME);
-
-        List<TalkRelationship> relationships = mDatabase.findRelationshipsForClientInState(clientId, TalkRelationship.STATE_NONE);
-        for (TalkRelationship relationship : relationships) {
-            if (!cal.after(relationship.getLastChanged())) {
-                continue;
-            }
-            mDatabase.deleteRelationship(relationship);
-            LOG.debug("deleted relationship from clientId '" + relationship.getClientId() + "' to clientID '" + relationship.getOtherClientId() + "'");
+    private void doDeleteDelivery(TalkDelivery delivery) {
+        mDatabase.deleteDelivery(delivery);
+        // keep pending counters in sync should we ever remove a delivery in progress
+        if (TalkDelivery.STATE_DELIVERING.equals(delivery.getState())) {
+            mServer.getDeliveryAgent().getPendingDeliveries().decrement(delivery.getReceiverId());
         }
     }
 
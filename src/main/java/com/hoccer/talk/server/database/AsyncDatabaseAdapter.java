@@ -0,0 +1,190 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.*;
+import com.hoccer.talk.server.AsyncTalkServerDatabase;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import com.hoccer.talk.util.NamedThreadFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the lookups of a blocking database on a thread pool
+ * <p/>
+ * The Jongo and OrmLite drivers block while waiting for the database,
+ * so asynchronous lookups are performed by dedicated threads, bounded
+ * by the connection pools of the drivers.
+ */
+public class AsyncDatabaseAdapter implements AsyncTalkServerDatabase {
+
+    private final ITalkServerDatabase mDatabase;
+
+    private final ExecutorService mExecutor;
+
+    public AsyncDatabaseAdapter(ITalkServerDatabase database, int threads) {
+        mDatabase = database;
+        mExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("database-async"));
+    }
+
+    /**
+     * Wait for the result of a lookup
+     * <p/>
+     * Runtime exceptions of the lookup are rethrown as they are,
+     * anything else is wrapped into a RuntimeException.
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for database", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public ITalkServerDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    @Override
+    public Future<TalkClient> findClientById(final String clientId) {
+        return mExecutor.submit(new Callable<TalkClient>() {
+            @Override
+            public TalkClient call() {
+                return mDatabase.findClientById(clientId);
+            }
+        });
+    }
+
+    @Override
+    public Future<Set<String>> existingClientIds(final Collection<String> clientIds) {
+        return mExecutor.submit(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return mDatabase.existingClientIds(clientIds);
+            }
+        });
+    }
+
+    @Override
+    public Future<TalkMessage> findMessageById(final String messageId) {
+        return mExecutor.submit(new Callable<TalkMessage>() {
+            @Override
+            public TalkMessage call() {
+                return mDatabase.findMessageById(messageId);
+            }
+        });
+    }
+
+    @Override
+    public Future<TalkDelivery> findDelivery(final String messageId, final String clientId) {
+        return mExecutor.submit(new Callable<TalkDelivery>() {
+            @Override
+            public TalkDelivery call() {
+                return mDatabase.findDelivery(messageId, clientId);
+            }
+        });
+    }
+
+    @Override
+    public Future<List<TalkDelivery>> findDeliveriesFromClientInState(final String clientId, final String state) {
+        return mExecutor.submit(new Callable<List<TalkDelivery>>() {
+            @Override
+            public List<TalkDelivery> call() {
+                return mDatabase.findDeliveriesFromClientInState(clientId, state);
+            }
+        });
+    }
+
+    @Override
+    public Future<TalkPresence> findPresenceForClient(final String clientId) {
+        return mExecutor.submit(new Callable<TalkPresence>() {
+            @Override
+            public TalkPresence call() {
+                return mDatabase.findPresenceForClient(clientId);
+            }
+        });
+    }
+
+    @Override
+    public Future<TalkRelationship> findRelationshipBetween(final String client, final String otherClient) {
+        return mExecutor.submit(new Callable<TalkRelationship>() {
+            @Override
+            public TalkRelationship call() {
+                return mDatabase.findRelationshipBetween(client, otherClient);
+            }
+        });
+    }
+
+    @Override
+    public Future<TalkGroup> findGroupById(final String groupId) {
+        return mExecutor.submit(new Callable<TalkGroup>() {
+            @Override
+            public TalkGroup call() {
+                return mDatabase.findGroupById(groupId);
+            }
+        });
+    }
+
+    @Override
+    public Future<List<TalkGroupMember>> findGroupMembersById(final String groupId) {
+        return mExecutor.submit(new Callable<List<TalkGroupMember>>() {
+            @Override
+            public List<TalkGroupMember> call() {
+                return mDatabase.findGroupMembersById(groupId);
+            }
+        });
+    }
+
+    @Override
+    public Future<TalkGroupMember> findGroupMemberForClient(final String groupId, final String clientId) {
+        return mExecutor.submit(new Callable<TalkGroupMember>() {
+            @Override
+            public TalkGroupMember call() {
+                return mDatabase.findGroupMemberForClient(groupId, clientId);
+            }
+        });
+    }
+
+    @Override
+    public Future<GroupMembershipView> findGroupMembershipForClient(final String groupId, final String clientId) {
+        return mExecutor.submit(new Callable<GroupMembershipView>() {
+            @Override
+            public GroupMembershipView call() {
+                return mDatabase.findGroupMembershipForClient(groupId, clientId);
+            }
+        });
+    }
+
+    @Override
+    public Future<TalkEnvironment> findEnvironmentByClientId(final String type, final String clientId) {
+        return mExecutor.submit(new Callable<TalkEnvironment>() {
+            @Override
+            public TalkEnvironment call() {
+                return mDatabase.findEnvironmentByClientId(type, clientId);
+            }
+        });
+    }
+
+    @Override
+    public Future<List<TalkEnvironment>> findEnvironmentsMatching(final TalkEnvironment environment) {
+        return mExecutor.submit(new Callable<List<TalkEnvironment>>() {
+            @Override
+            public List<TalkEnvironment> call() {
+                return mDatabase.findEnvironmentsMatching(environment);
+            }
+        });
+    }
+
+}
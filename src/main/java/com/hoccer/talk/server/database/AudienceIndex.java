@@ -0,0 +1,107 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.TalkRelationship;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Audience of each client's presence
+ * <p/>
+ * The audience of a client consists of everyone who has befriended it
+ * and everyone sharing a group with it in which both are invited or joined.
+ * <p/>
+ * Friends are materialized incrementally on every relationship change.
+ * Group co-members are taken from the membership index when the audience
+ * is requested: materializing them per client pair would cost quadratic
+ * space and update time in large (e.g. nearby) groups.
+ */
+public class AudienceIndex {
+
+    private static final Logger LOG = Logger.getLogger(AudienceIndex.class);
+
+    private final GroupMembershipIndex mMemberships;
+
+    /**
+     * Clients that befriended each client
+     */
+    private final ConcurrentMap<String, Set<String>> mFriendAudiences =
+            new ConcurrentHashMap<String, Set<String>>();
+
+    public AudienceIndex(GroupMembershipIndex memberships) {
+        mMemberships = memberships;
+    }
+
+    /**
+     * Load from all relationships in friend state
+     */
+    public void load(Iterator<TalkRelationship> friendships) {
+        long startTime = System.currentTimeMillis();
+        int count = 0;
+        while (friendships.hasNext()) {
+            update(friendships.next());
+            count++;
+        }
+        LOG.info("indexed " + count + " friendships for " + mFriendAudiences.size() + " clients (took "
+                + (System.currentTimeMillis() - startTime) + "ms)");
+    }
+
+    /**
+     * Record the current state of the given relationship
+     */
+    public void update(TalkRelationship relationship) {
+        if (relationship.isFriend()) {
+            addFriend(relationship.getOtherClientId(), relationship.getClientId());
+        } else {
+            removeFriend(relationship.getOtherClientId(), relationship.getClientId());
+        }
+    }
+
+    /**
+     * Forget the given relationship
+     */
+    public void remove(TalkRelationship relationship) {
+        removeFriend(relationship.getOtherClientId(), relationship.getClientId());
+    }
+
+    /**
+     * @return ids of all clients that should receive presence updates of the given client
+     */
+    public Set<String> getAudience(String clientId) {
+        Set<String> audience = new HashSet<String>();
+        Set<String> friends = mFriendAudiences.get(clientId);
+        if (friends != null) {
+            audience.addAll(friends);
+        }
+        for (String groupId : mMemberships.getActiveGroupsForClient(clientId)) {
+            audience.addAll(mMemberships.getInvitedOrJoinedMembers(groupId));
+        }
+        audience.remove(clientId);
+        return audience;
+    }
+
+    private void addFriend(String clientId, String friendId) {
+        Set<String> friends = mFriendAudiences.get(clientId);
+        if (friends == null) {
+            Set<String> newFriends = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4, 0.75f, 2));
+            friends = mFriendAudiences.putIfAbsent(clientId, newFriends);
+            if (friends == null) {
+                friends = newFriends;
+            }
+        }
+        friends.add(friendId);
+    }
+
+    private void removeFriend(String clientId, String friendId) {
+        Set<String> friends = mFriendAudiences.get(clientId);
+        if (friends != null) {
+            friends.remove(friendId);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hoccer.talk.model.TalkClient;
+import com.hoccer.talk.model.TalkGroup;
+import com.hoccer.talk.model.TalkGroupMember;
+import com.hoccer.talk.model.TalkPresence;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import org.apache.log4j.Logger;
+
+/**
+ * Read-through cache in front of another database
+ * <p/>
+ * Caches the small documents that get re-read on nearly every call:
+ * clients, presences, groups and group memberships. Saves write through
+ * and update the cache, deletes invalidate it. Cached objects are copied
+ * on the way in and out, so callers can modify what they get as usual.
+ * <p/>
+ * This assumes that this server is the only writer to the backend.
+ */
+public class CachingDatabase extends DelegatingDatabase {
+
+    private static final Logger LOG = Logger.getLogger(CachingDatabase.class);
+
+    private final ObjectCloner mCloner = new ObjectCloner();
+
+    private final LruCache<String, TalkClient> mClients;
+    private final LruCache<String, TalkPresence> mPresences;
+    private final LruCache<String, TalkGroup> mGroups;
+    private final LruCache<String, TalkGroupMember> mGroupMembers;
+
+    public CachingDatabase(ITalkServerDatabase database, int cacheSize, MetricRegistry metrics) {
+        super(database);
+        LOG.info("Caching up to " + cacheSize + " entries per entity type");
+        mClients = new LruCache<String, TalkClient>("clients", cacheSize);
+        mPresences = new LruCache<String, TalkPresence>("presences", cacheSize);
+        mGroups = new LruCache<String, TalkGroup>("groups", cacheSize);
+        mGroupMembers = new LruCache<String, TalkGroupMember>("groupMembers", cacheSize);
+        mClients.registerMetrics(metrics, CachingDatabase.class);
+        mPresences.registerMetrics(metrics, CachingDatabase.class);
+        mGroups.registerMetrics(metrics, CachingDatabase.class);
+        mGroupMembers.registerMetrics(metrics, CachingDatabase.class);
+    }
+
+    private static String groupMemberKey(String groupId, String clientId) {
+        return groupId + "/" + clientId;
+    }
+
+    @Override
+    public TalkClient findClientById(String clientId) {
+        TalkClient client = mClients.get(clientId);
+        if (client == null) {
+            client = mDatabase.findClientById(clientId);
+            if (client != null) {
+                mClients.putIfAbsent(clientId, mCloner.copy(client));
+            }
+            return client;
+        }
+        return mCloner.copy(client);
+    }
+
+    @Override
+    public void saveClient(TalkClient client) {
+        mDatabase.saveClient(client);
+        mClients.put(client.getClientId(), mCloner.copy(client));
+    }
+
+    @Override
+    public TalkPresence findPresenceForClient(String clientId) {
+        TalkPresence presence = mPresences.get(clientId);
+        if (presence == null) {
+            presence = mDatabase.findPresenceForClient(clientId);
+            if (presence != null) {
+                mPresences.putIfAbsent(clientId, mCloner.copy(presence));
+            }
+            return presence;
+        }
+        return mCloner.copy(presence);
+    }
+
+    @Override
+    public void savePresence(TalkPresence presence) {
+        mDatabase.savePresence(presence);
+        mPresences.put(presence.getClientId(), mCloner.copy(presence));
+    }
+
+    @Override
+    public TalkGroup findGroupById(String groupId) {
+        TalkGroup group = mGroups.get(groupId);
+        if (group == null) {
+            group = mDatabase.findGroupById(groupId);
+            if (group != null) {
+                mGroups.putIfAbsent(groupId, mCloner.copy(group));
+            }
+            return group;
+        }
+        return mCloner.copy(group);
+    }
+
+    @Override
+    public void saveGroup(TalkGroup group) {
+        mDatabase.saveGroup(group);
+        mGroups.put(group.getGroupId(), mCloner.copy(group));
+    }
+
+    @Override
+    public void deleteGroup(TalkGroup group) {
+        mGroups.remove(group.getGroupId());
+        mDatabase.deleteGroup(group);
+        mGroups.remove(group.getGroupId());
+    }
+
+    @Override
+    public TalkGroupMember findGroupMemberForClient(String groupId, String clientId) {
+        String key = groupMemberKey(groupId, clientId);
+        TalkGroupMember member = mGroupMembers.get(key);
+        if (member == null) {
+            member = mDatabase.findGroupMemberForClient(groupId, clientId);
+            if (member != null) {
+                mGroupMembers.putIfAbsent(key, mCloner.copy(member));
+            }
+            return member;
+        }
+        return mCloner.copy(member);
+    }
+
+    @Override
+    public GroupMembershipView findGroupMembershipForClient(String groupId, String clientId) {
+        TalkGroupMember member = mGroupMembers.get(groupMemberKey(groupId, clientId));
+        if (member == null) {
+            return mDatabase.findGroupMembershipForClient(groupId, clientId);
+        }
+        return new GroupMembershipView(member);
+    }
+
+    @Override
+    public void saveGroupMember(TalkGroupMember groupMember) {
+        mDatabase.saveGroupMember(groupMember);
+        mGroupMembers.put(groupMemberKey(groupMember.getGroupId(), groupMember.getClientId()),
+                mCloner.copy(groupMember));
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.hoccer.talk.server.database;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Streaming iterator over the results of a database query
+ * <p/>
+ * Results are fetched in batches while iterating instead of being
+ * collected in a list, so that full scans run in constant memory.
+ * Cursors hold server resources and must be closed after use,
+ * preferably in a finally block.
+ */
+public interface DatabaseCursor<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Release the cursor without throwing
+     */
+    @Override
+    public void close();
+
+}
@@ -0,0 +1,391 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.*;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Base class for database decorators
+ * <p/>
+ * Forwards every call to the wrapped database so that
+ * subclasses only need to override what they change.
+ */
+public abstract class DelegatingDatabase implements ITalkServerDatabase {
+
+    protected final ITalkServerDatabase mDatabase;
+
+    protected DelegatingDatabase(ITalkServerDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * @return the wrapped database
+     */
+    public ITalkServerDatabase getDelegate() {
+        return mDatabase;
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        return mDatabase.getStatistics();
+    }
+
+    @Override
+    public List<TalkClient> findAllClients() {
+        return mDatabase.findAllClients();
+    }
+
+    @Override
+    public DatabaseCursor<TalkClient> iterateAllClients() {
+        return mDatabase.iterateAllClients();
+    }
+
+    @Override
+    public TalkClient findClientById(String clientId) {
+        return mDatabase.findClientById(clientId);
+    }
+
+    @Override
+    public Set<String> existingClientIds(Collection<String> clientIds) {
+        return mDatabase.existingClientIds(clientIds);
+    }
+
+    @Override
+    public TalkClient findClientByApnsToken(String apnsToken) {
+        return mDatabase.findClientByApnsToken(apnsToken);
+    }
+
+    @Override
+    public void saveClient(TalkClient client) {
+        mDatabase.saveClient(client);
+    }
+
+    @Override
+    public TalkMessage findMessageById(String messageId) {
+        return mDatabase.findMessageById(messageId);
+    }
+
+    @Override
+    public List<TalkMessage> findMessagesByIds(Collection<String> messageIds) {
+        return mDatabase.findMessagesByIds(messageIds);
+    }
+
+    @Override
+    public void deleteMessage(TalkMessage message) {
+        mDatabase.deleteMessage(message);
+    }
+
+    @Override
+    public void saveMessage(TalkMessage message) {
+        mDatabase.saveMessage(message);
+    }
+
+    @Override
+    public TalkDelivery findDelivery(String messageId, String clientId) {
+        return mDatabase.findDelivery(messageId, clientId);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesInState(String state) {
+        return mDatabase.findDeliveriesInState(state);
+    }
+
+    @Override
+    public DatabaseCursor<TalkDelivery> iterateDeliveriesInState(String state) {
+        return mDatabase.iterateDeliveriesInState(state);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClient(String clientId) {
+        return mDatabase.findDeliveriesForClient(clientId);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClientInState(String clientId, String state) {
+        return mDatabase.findDeliveriesForClientInState(clientId, state);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClient(String clientId) {
+        return mDatabase.findDeliveriesFromClient(clientId);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClientInState(String clientId, String state) {
+        return mDatabase.findDeliveriesFromClientInState(clientId, state);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForMessage(String messageId) {
+        return mDatabase.findDeliveriesForMessage(messageId);
+    }
+
+    @Override
+    public void deleteDelivery(TalkDelivery delivery) {
+        mDatabase.deleteDelivery(delivery);
+    }
+
+    @Override
+    public void saveDelivery(TalkDelivery delivery) {
+        mDatabase.saveDelivery(delivery);
+    }
+
+    @Override
+    public void saveDeliveries(List<TalkDelivery> deliveries) {
+        mDatabase.saveDeliveries(deliveries);
+    }
+
+    @Override
+    public boolean updateDeliveryState(String messageId, String receiverId, String expectedState, String newState, Date timeChanged) {
+        return mDatabase.updateDeliveryState(messageId, receiverId, expectedState, newState, timeChanged);
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedIn(String messageId, String receiverId, Date timeUpdatedIn) {
+        mDatabase.updateDeliveryTimeUpdatedIn(messageId, receiverId, timeUpdatedIn);
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedOut(String messageId, String receiverId, Date timeUpdatedOut) {
+        mDatabase.updateDeliveryTimeUpdatedOut(messageId, receiverId, timeUpdatedOut);
+    }
+
+    @Override
+    public List<TalkToken> findTokensByClient(String clientId) {
+        return mDatabase.findTokensByClient(clientId);
+    }
+
+    @Override
+    public TalkToken findTokenByPurposeAndSecret(String purpose, String secret) {
+        return mDatabase.findTokenByPurposeAndSecret(purpose, secret);
+    }
+
+    @Override
+    public void deleteToken(TalkToken token) {
+        mDatabase.deleteToken(token);
+    }
+
+    @Override
+    public void saveToken(TalkToken token) {
+        mDatabase.saveToken(token);
+    }
+
+    @Override
+    public TalkPresence findPresenceForClient(String clientId) {
+        return mDatabase.findPresenceForClient(clientId);
+    }
+
+    @Override
+    public void savePresence(TalkPresence presence) {
+        mDatabase.savePresence(presence);
+    }
+
+    @Override
+    public List<TalkPresence> findPresencesChangedAfter(String clientId, Date lastKnown) {
+        return mDatabase.findPresencesChangedAfter(clientId, lastKnown);
+    }
+
+    @Override
+    public List<TalkPresence> findPresencesForClients(Collection<String> clientIds) {
+        return mDatabase.findPresencesForClients(clientIds);
+    }
+
+    @Override
+    public TalkKey findKey(String clientId, String keyId) {
+        return mDatabase.findKey(clientId, keyId);
+    }
+
+    @Override
+    public List<TalkKey> findKeys(String clientId) {
+        return mDatabase.findKeys(clientId);
+    }
+
+    @Override
+    public DatabaseCursor<TalkKey> iterateKeysOlderThan(Date timestamp) {
+        return mDatabase.iterateKeysOlderThan(timestamp);
+    }
+
+    @Override
+    public void deleteKey(TalkKey key) {
+        mDatabase.deleteKey(key);
+    }
+
+    @Override
+    public void saveKey(TalkKey key) {
+        mDatabase.saveKey(key);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationships(String client) {
+        return mDatabase.findRelationships(client);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsForClientInState(String clientId, String state) {
+        return mDatabase.findRelationshipsForClientInState(clientId, state);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsByOtherClient(String other) {
+        return mDatabase.findRelationshipsByOtherClient(other);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsChangedAfter(String client, Date lastKnown) {
+        return mDatabase.findRelationshipsChangedAfter(client, lastKnown);
+    }
+
+    @Override
+    @Nullable
+    public TalkRelationship findRelationshipBetween(String client, String otherClient) {
+        return mDatabase.findRelationshipBetween(client, otherClient);
+    }
+
+    @Override
+    public void deleteRelationship(TalkRelationship relationship) {
+        mDatabase.deleteRelationship(relationship);
+    }
+
+    @Override
+    public void saveRelationship(TalkRelationship relationship) {
+        mDatabase.saveRelationship(relationship);
+    }
+
+    @Override
+    public AudienceIndex getAudienceIndex() {
+        return mDatabase.getAudienceIndex();
+    }
+
+    @Override
+    public TalkGroup findGroupById(String groupId) {
+        return mDatabase.findGroupById(groupId);
+    }
+
+    @Override
+    public void deleteGroup(TalkGroup group) {
+        mDatabase.deleteGroup(group);
+    }
+
+    @Override
+    public List<TalkGroup> findGroupsByClientIdChangedAfter(String clientId, Date lastKnown) {
+        return mDatabase.findGroupsByClientIdChangedAfter(clientId, lastKnown);
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdWithStatesChangedAfter(String groupId, String[] states, Date lastKnown) {
+        return mDatabase.findGroupMembersByIdWithStatesChangedAfter(groupId, states, lastKnown);
+    }
+
+    @Override
+    public void saveGroup(TalkGroup group) {
+        mDatabase.saveGroup(group);
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersById(String groupId) {
+        return mDatabase.findGroupMembersById(groupId);
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdWithStates(String groupId, String[] states) {
+        return mDatabase.findGroupMembersByIdWithStates(groupId, states);
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdWithStatesAndRoles(String groupId, String[] states, String [] roles) {
+        return mDatabase.findGroupMembersByIdWithStatesAndRoles(groupId, states, roles);
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdChangedAfter(String groupId, Date lastKnown) {
+        return mDatabase.findGroupMembersByIdChangedAfter(groupId, lastKnown);
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersForClient(String clientId) {
+        return mDatabase.findGroupMembersForClient(clientId);
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersForClientWithStates(String clientId, String[] states) {
+        return mDatabase.findGroupMembersForClientWithStates(clientId, states);
+    }
+
+    @Override
+    public TalkGroupMember findGroupMemberForClient(String groupId, String clientId) {
+        return mDatabase.findGroupMemberForClient(groupId, clientId);
+    }
+
+    @Override
+    public GroupMembershipView findGroupMembershipForClient(String groupId, String clientId) {
+        return mDatabase.findGroupMembershipForClient(groupId, clientId);
+    }
+
+    @Override
+    public List<GroupMembershipView> findGroupMembershipsForClient(String clientId) {
+        return mDatabase.findGroupMembershipsForClient(clientId);
+    }
+
+    @Override
+    public void saveGroupMember(TalkGroupMember groupMember) {
+        mDatabase.saveGroupMember(groupMember);
+    }
+
+    @Override
+    public GroupMembershipIndex getGroupMembershipIndex() {
+        return mDatabase.getGroupMembershipIndex();
+    }
+
+    @Override
+    public void saveEnvironment(TalkEnvironment environment) {
+        mDatabase.saveEnvironment(environment);
+    }
+
+    @Override
+    public TalkEnvironment findEnvironmentByClientId(String type, String clientId) {
+        return mDatabase.findEnvironmentByClientId(type, clientId);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsForGroup(String groupId) {
+        return mDatabase.findEnvironmentsForGroup(groupId);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsMatching(TalkEnvironment environment) {
+        return mDatabase.findEnvironmentsMatching(environment);
+    }
+
+    @Override
+    public void deleteEnvironment(TalkEnvironment environment) {
+        mDatabase.deleteEnvironment(environment);
+    }
+
+    @Override
+    public int purgeExpired(Date now) {
+        return mDatabase.purgeExpired(now);
+    }
+
+    @Override
+    public List<TalkEnvironment> findExpiredEnvironments(Date now) {
+        return mDatabase.findExpiredEnvironments(now);
+    }
+
+    @Override
+    public boolean ping() {
+        return mDatabase.ping();
+    }
+
+    @Override
+    public void reportPing() {
+        mDatabase.reportPing();
+    }
+
+    @Override
+    public void shutdown() {
+        mDatabase.shutdown();
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.TalkEnvironment;
+import com.hoccer.talk.model.TalkRelationship;
+import com.hoccer.talk.model.TalkToken;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+/**
+ * Expiry times of documents
+ * <p/>
+ * Tokens and relationships are deleted by time alone. JongoDatabase
+ * stores their expiry in an extra field covered by TTL indexes, so
+ * mongodb deletes them by itself. The other backends compare them in
+ * purgeExpired().
+ * <p/>
+ * Environments hold their client in a group, so expired ones are only
+ * looked up here and torn down by the cleaning agent.
+ */
+public class Expiry {
+
+    /**
+     * Name of the expiry field in mongodb documents
+     */
+    public static final String FIELD = "expiresAt";
+
+    public static final int RELATIONSHIP_LIFE_TIME = 3; // in months
+
+    public static final int ENVIRONMENT_LIFE_TIME = 24; // in hours
+
+    /**
+     * Spent tokens expire immediately, others at their expiry time
+     */
+    public static Date of(TalkToken token) {
+        if (TalkToken.STATE_SPENT.equals(token.getState())) {
+            return new Date(0);
+        }
+        return token.getExpiryTime();
+    }
+
+    /**
+     * Relationships expire some time after they have been reset to none
+     *
+     * @return expiry time or null if the relationship does not expire
+     */
+    public static Date of(TalkRelationship relationship) {
+        if (!TalkRelationship.STATE_NONE.equals(relationship.getState())) {
+            return null;
+        }
+        return after(relationship.getLastChanged(), Calendar.MONTH, RELATIONSHIP_LIFE_TIME);
+    }
+
+    /**
+     * Environments expire some time after their last update
+     */
+    public static Date of(TalkEnvironment environment) {
+        return after(environment.getTimeReceived(), Calendar.HOUR, ENVIRONMENT_LIFE_TIME);
+    }
+
+    /**
+     * @return the time before which relationships reset to none have expired
+     */
+    public static Date relationshipsChangedBefore(Date now) {
+        return after(now, Calendar.MONTH, -RELATIONSHIP_LIFE_TIME);
+    }
+
+    /**
+     * @return the time before which environments must have been updated
+     */
+    public static Date environmentsReceivedBefore(Date now) {
+        return after(now, Calendar.HOUR, -ENVIRONMENT_LIFE_TIME);
+    }
+
+    public static boolean isExpired(Date expiry, Date now) {
+        return expiry != null && expiry.before(now);
+    }
+
+    private static Date after(Date time, int field, int amount) {
+        Calendar cal = new GregorianCalendar();
+        cal.setTime(time == null ? new Date() : time);
+        cal.add(field, amount);
+        return cal.getTime();
+    }
+
+}
@@ -0,0 +1,309 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.TalkGroupMember;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of all group memberships
+ * <p/>
+ * Maps groups to their members and clients to their groups, together with
+ * the state and role of each membership. It is loaded by the database on
+ * startup and kept current on every group member save, so that membership
+ * questions can be answered without a database round trip.
+ * <p/>
+ * To keep millions of memberships in heap, ids are interned so that each
+ * id string exists only once, and state and role are packed into a single
+ * byte whose boxed values are shared.
+ */
+public class GroupMembershipIndex {
+
+    private static final Logger LOG = Logger.getLogger(GroupMembershipIndex.class);
+
+    /**
+     * Codes for state and role strings (at most 16 of each)
+     */
+    private static class CodeTable {
+        private final List<String> mValues = new ArrayList<String>();
+
+        CodeTable(String... knownValues) {
+            mValues.add(null);
+            mValues.addAll(Arrays.asList(knownValues));
+        }
+
+        synchronized int encode(String value) {
+            int code = mValues.indexOf(value);
+            if (code < 0) {
+                if (mValues.size() >= 16) {
+                    throw new IllegalStateException("too many distinct values: " + value);
+                }
+                mValues.add(value);
+                code = mValues.size() - 1;
+            }
+            return code;
+        }
+
+        synchronized String decode(int code) {
+            return mValues.get(code);
+        }
+    }
+
+    private final CodeTable mStates = new CodeTable(
+            TalkGroupMember.STATE_NONE,
+            TalkGroupMember.STATE_INVITED,
+            TalkGroupMember.STATE_JOINED,
+            TalkGroupMember.STATE_GROUP_REMOVED);
+
+    private final CodeTable mRoles = new CodeTable(
+            TalkGroupMember.ROLE_ADMIN,
+            TalkGroupMember.ROLE_MEMBER);
+
+    private final int mStateInvited = mStates.encode(TalkGroupMember.STATE_INVITED);
+    private final int mStateJoined = mStates.encode(TalkGroupMember.STATE_JOINED);
+    private final int mRoleAdmin = mRoles.encode(TalkGroupMember.ROLE_ADMIN);
+    private final int mRoleMember = mRoles.encode(TalkGroupMember.ROLE_MEMBER);
+
+    /**
+     * Canonical instances of all ids in the index
+     */
+    private final ConcurrentMap<String, String> mIds = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Members of each group with their packed state and role
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Byte>> mGroupMembers =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Byte>>();
+
+    /**
+     * Groups of each client
+     */
+    private final ConcurrentMap<String, Set<String>> mClientGroups =
+            new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Load from views of all memberships
+     */
+    public void load(Iterator<GroupMembershipView> members) {
+        long startTime = System.currentTimeMillis();
+        int count = 0;
+        while (members.hasNext()) {
+            update(members.next());
+            count++;
+        }
+        LOG.info("indexed " + count + " group memberships of " + mClientGroups.size() + " clients in "
+                + mGroupMembers.size() + " groups (took " + (System.currentTimeMillis() - startTime) + "ms)");
+    }
+
+    /**
+     * Record the current state of the given membership
+     */
+    public void update(TalkGroupMember member) {
+        update(member.getGroupId(), member.getClientId(), member.getState(), member.getRole());
+    }
+
+    public void update(GroupMembershipView member) {
+        update(member.getGroupId(), member.getClientId(), member.getState(), member.getRole());
+    }
+
+    private void update(String memberGroupId, String memberClientId, String state, String role) {
+        String groupId = intern(memberGroupId);
+        String clientId = intern(memberClientId);
+        Byte packed = pack(mStates.encode(state), mRoles.encode(role));
+
+        ConcurrentMap<String, Byte> members = mGroupMembers.get(groupId);
+        if (members == null) {
+            ConcurrentMap<String, Byte> newMembers = new ConcurrentHashMap<String, Byte>(4, 0.75f, 2);
+            members = mGroupMembers.putIfAbsent(groupId, newMembers);
+            if (members == null) {
+                members = newMembers;
+            }
+        }
+        members.put(clientId, packed);
+
+        Set<String> groups = mClientGroups.get(clientId);
+        if (groups == null) {
+            Set<String> newGroups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4, 0.75f, 2));
+            groups = mClientGroups.putIfAbsent(clientId, newGroups);
+            if (groups == null) {
+                groups = newGroups;
+            }
+        }
+        groups.add(groupId);
+    }
+
+    /**
+     * @return ids of all groups the client has a membership in, regardless of state
+     */
+    public Set<String> getGroupsForClient(String clientId) {
+        Set<String> groups = mClientGroups.get(clientId);
+        if (groups == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<String>(groups);
+    }
+
+    /**
+     * @return ids of all groups the client is invited to or joined in
+     */
+    public Set<String> getActiveGroupsForClient(String clientId) {
+        Set<String> result = new HashSet<String>();
+        Set<String> groups = mClientGroups.get(clientId);
+        if (groups != null) {
+            for (String groupId : groups) {
+                if (isInvitedOrJoined(groupId, clientId)) {
+                    result.add(groupId);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return ids of all clients with a membership in the group, regardless of state
+     */
+    public Set<String> getMembers(String groupId) {
+        ConcurrentMap<String, Byte> members = mGroupMembers.get(groupId);
+        if (members == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<String>(members.keySet());
+    }
+
+    /**
+     * @return ids of all clients joined in the group
+     */
+    public Set<String> getJoinedMembers(String groupId) {
+        return getMembersInStates(groupId, false, true);
+    }
+
+    /**
+     * @return ids of all clients invited to or joined in the group
+     */
+    public Set<String> getInvitedOrJoinedMembers(String groupId) {
+        return getMembersInStates(groupId, true, true);
+    }
+
+    public String getState(String groupId, String clientId) {
+        Byte packed = get(groupId, clientId);
+        return packed == null ? null : mStates.decode(stateOf(packed));
+    }
+
+    public String getRole(String groupId, String clientId) {
+        Byte packed = get(groupId, clientId);
+        return packed == null ? null : mRoles.decode(roleOf(packed));
+    }
+
+    public boolean isJoined(String groupId, String clientId) {
+        Byte packed = get(groupId, clientId);
+        return packed != null && stateOf(packed) == mStateJoined;
+    }
+
+    public boolean isInvited(String groupId, String clientId) {
+        Byte packed = get(groupId, clientId);
+        return packed != null && stateOf(packed) == mStateInvited;
+    }
+
+    public boolean isInvitedOrJoined(String groupId, String clientId) {
+        Byte packed = get(groupId, clientId);
+        return packed != null && (stateOf(packed) == mStateInvited || stateOf(packed) == mStateJoined);
+    }
+
+    /**
+     * @return true if the client has the role of a member or admin in the group
+     */
+    public boolean isMember(String groupId, String clientId) {
+        Byte packed = get(groupId, clientId);
+        return packed != null && (roleOf(packed) == mRoleMember || roleOf(packed) == mRoleAdmin);
+    }
+
+    /**
+     * @return true if both clients are joined in at least one common group
+     */
+    public boolean shareJoinedGroup(String clientId1, String clientId2) {
+        Set<String> groups = mClientGroups.get(clientId1);
+        if (groups == null) {
+            return false;
+        }
+        for (String groupId : groups) {
+            if (isJoined(groupId, clientId1) && isJoined(groupId, clientId2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if both clients are invited to or joined in at least one common group
+     */
+    public boolean shareActiveGroup(String clientId1, String clientId2) {
+        Set<String> groups = mClientGroups.get(clientId1);
+        if (groups == null) {
+            return false;
+        }
+        for (String groupId : groups) {
+            if (isInvitedOrJoined(groupId, clientId1) && isInvitedOrJoined(groupId, clientId2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of indexed memberships
+     */
+    public int getMembershipCount() {
+        int count = 0;
+        for (ConcurrentMap<String, Byte> members : mGroupMembers.values()) {
+            count += members.size();
+        }
+        return count;
+    }
+
+    public int getGroupCount() {
+        return mGroupMembers.size();
+    }
+
+    public int getClientCount() {
+        return mClientGroups.size();
+    }
+
+    private Set<String> getMembersInStates(String groupId, boolean invited, boolean joined) {
+        Set<String> result = new HashSet<String>();
+        ConcurrentMap<String, Byte> members = mGroupMembers.get(groupId);
+        if (members != null) {
+            for (Map.Entry<String, Byte> entry : members.entrySet()) {
+                int state = stateOf(entry.getValue());
+                if ((invited && state == mStateInvited) || (joined && state == mStateJoined)) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    private Byte get(String groupId, String clientId) {
+        ConcurrentMap<String, Byte> members = mGroupMembers.get(groupId);
+        return members == null ? null : members.get(clientId);
+    }
+
+    private String intern(String id) {
+        String existing = mIds.putIfAbsent(id, id);
+        return existing == null ? id : existing;
+    }
+
+    private static Byte pack(int state, int role) {
+        return Byte.valueOf((byte) ((state << 4) | role));
+    }
+
+    private static int stateOf(Byte packed) {
+        return (packed & 0xf0) >> 4;
+    }
+
+    private static int roleOf(Byte packed) {
+        return packed & 0x0f;
+    }
+
+}
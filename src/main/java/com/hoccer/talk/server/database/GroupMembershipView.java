@@ -0,0 +1,76 @@
+package com.hoccer.talk.server.database;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.hoccer.talk.model.TalkGroupMember;
+
+/**
+ * Lightweight read-only view of a group membership
+ * <p/>
+ * Carries only the fields needed for membership and permission checks,
+ * so that databases can fetch it with a projection instead of decoding
+ * whole group member documents including their encrypted group keys.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class GroupMembershipView {
+
+    /**
+     * Projection selecting the fields of this view from group member documents
+     */
+    public static final String PROJECTION = "{_id: 0, groupId: 1, clientId: 1, state: 1, role: 1}";
+
+    /**
+     * Columns selecting the fields of this view from the group member table
+     */
+    public static final String[] COLUMNS = {"groupId", "clientId", "state", "role"};
+
+    String groupId;
+
+    String clientId;
+
+    String state;
+
+    String role;
+
+    public GroupMembershipView() {
+    }
+
+    public GroupMembershipView(TalkGroupMember member) {
+        groupId = member.getGroupId();
+        clientId = member.getClientId();
+        state = member.getState();
+        role = member.getRole();
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public boolean isAdmin() {
+        return TalkGroupMember.ROLE_ADMIN.equals(role);
+    }
+
+    public boolean isMember() {
+        return TalkGroupMember.ROLE_MEMBER.equals(role) || isAdmin();
+    }
+
+    public boolean isInvited() {
+        return TalkGroupMember.STATE_INVITED.equals(state);
+    }
+
+    public boolean isJoined() {
+        return TalkGroupMember.STATE_JOINED.equals(state);
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instruments all calls to another database
+ * <p/>
+ * Every method of ITalkServerDatabase gets a timer, methods returning
+ * collections also get a histogram of their result sizes. Both are
+ * registered as ITalkServerDatabase.[method] and [method].results.
+ * <p/>
+ * Calls taking longer than the configured threshold are kept in a
+ * bounded log of the most recent slow queries. Arguments are recorded
+ * as plain values only for numbers, dates and enums. Strings may be
+ * token secrets or push tokens, so they are recorded by length only
+ * and model objects by type.
+ * <p/>
+ * The decorator is a dynamic proxy, so it covers new database methods
+ * without changes.
+ */
+public class InstrumentedDatabase implements InvocationHandler {
+
+    private static final Logger LOG = Logger.getLogger(InstrumentedDatabase.class);
+
+    /**
+     * A single slow call
+     */
+    public static class SlowQuery {
+        private final Date mTime;
+        private final String mMethod;
+        private final String mArguments;
+        private final long mDuration;
+
+        SlowQuery(Date time, String method, String arguments, long duration) {
+            mTime = time;
+            mMethod = method;
+            mArguments = arguments;
+            mDuration = duration;
+        }
+
+        public Date getTime() {
+            return mTime;
+        }
+
+        public String getMethod() {
+            return mMethod;
+        }
+
+        public String getArguments() {
+            return mArguments;
+        }
+
+        /**
+         * @return duration in milliseconds
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+    }
+
+    private final ITalkServerDatabase mDatabase;
+
+    private final ITalkServerDatabase mProxy;
+
+    private final Map<Method, Timer> mTimers = new HashMap<Method, Timer>();
+
+    private final Map<Method, Histogram> mResultSizes = new HashMap<Method, Histogram>();
+
+    private final long mSlowThresholdNanos;
+
+    private final int mSlowLogSize;
+
+    private final LinkedList<SlowQuery> mSlowQueries = new LinkedList<SlowQuery>();
+
+    public InstrumentedDatabase(ITalkServerDatabase database, MetricRegistry metrics, int slowThresholdMs, int slowLogSize) {
+        mDatabase = database;
+        mSlowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMs);
+        mSlowLogSize = slowLogSize;
+        for (Method method : ITalkServerDatabase.class.getMethods()) {
+            // overloaded methods share their metrics
+            mTimers.put(method, metrics.timer(MetricRegistry.name(ITalkServerDatabase.class, method.getName())));
+            if (Collection.class.isAssignableFrom(method.getReturnType())) {
+                mResultSizes.put(method, metrics.histogram(MetricRegistry.name(ITalkServerDatabase.class, method.getName(), "results")));
+            }
+        }
+        mProxy = (ITalkServerDatabase) Proxy.newProxyInstance(
+                ITalkServerDatabase.class.getClassLoader(),
+                new Class<?>[]{ITalkServerDatabase.class},
+                this);
+        LOG.info("Instrumenting " + mTimers.size() + " database methods, logging calls slower than " + slowThresholdMs + "ms");
+    }
+
+    /**
+     * @return the instrumented database
+     */
+    public ITalkServerDatabase getDatabase() {
+        return mProxy;
+    }
+
+    /**
+     * @return the most recent slow calls, newest first
+     */
+    public List<SlowQuery> getSlowQueries() {
+        synchronized (mSlowQueries) {
+            List<SlowQuery> res = new ArrayList<SlowQuery>(mSlowQueries);
+            Collections.reverse(res);
+            return res;
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Timer timer = mTimers.get(method);
+        if (timer == null) {
+            // methods of Object
+            return method.invoke(mDatabase, args);
+        }
+
+        long startTime = System.nanoTime();
+        Object result;
+        try {
+            result = method.invoke(mDatabase, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            long duration = System.nanoTime() - startTime;
+            timer.update(duration, TimeUnit.NANOSECONDS);
+            if (duration >= mSlowThresholdNanos) {
+                logSlowQuery(method, args, duration);
+            }
+        }
+
+        Histogram resultSizes = mResultSizes.get(method);
+        if (resultSizes != null && result != null) {
+            resultSizes.update(((Collection<?>) result).size());
+        }
+        return result;
+    }
+
+    private void logSlowQuery(Method method, Object[] args, long duration) {
+        SlowQuery query = new SlowQuery(new Date(), method.getName(), describe(args),
+                TimeUnit.NANOSECONDS.toMillis(duration));
+        LOG.debug("slow query " + query.getMethod() + "(" + query.getArguments() + ") took " + query.getDuration() + "ms");
+        synchronized (mSlowQueries) {
+            mSlowQueries.add(query);
+            while (mSlowQueries.size() > mSlowLogSize) {
+                mSlowQueries.removeFirst();
+            }
+        }
+    }
+
+    private static String describe(Object[] args) {
+        if (args == null) {
+            return "";
+        }
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                res.append(", ");
+            }
+            res.append(describe(args[i]));
+        }
+        return res.toString();
+    }
+
+    private static String describe(Object arg) {
+        if (arg == null) {
+            return "null";
+        }
+        if (arg instanceof String) {
+            return "String(" + ((String) arg).length() + ")";
+        }
+        if (arg instanceof Number || arg instanceof Boolean || arg instanceof Enum) {
+            return arg.toString();
+        }
+        if (arg instanceof Date) {
+            return Long.toString(((Date) arg).getTime());
+        }
+        if (arg instanceof Collection) {
+            return arg.getClass().getSimpleName() + "[" + ((Collection<?>) arg).size() + "]";
+        }
+        if (arg instanceof Object[]) {
+            return arg.getClass().getComponentType().getSimpleName() + "[" + ((Object[]) arg).length + "]";
+        }
+        return arg.getClass().getSimpleName();
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.hoccer.talk.server.database;
+
+import com.mongodb.DBCursor;
+import org.jongo.Find;
+import org.jongo.QueryModifier;
+
+import java.util.Iterator;
+
+/**
+ * Database cursor over the results of a Jongo find
+ * <p/>
+ * The underlying driver cursor is captured when the query is executed
+ * so that it can be closed independently of the Jongo version in use.
+ */
+class JongoCursor<T> implements DatabaseCursor<T> {
+
+    private final Iterator<T> mIterator;
+
+    private DBCursor mCursor;
+
+    JongoCursor(Find find, Class<T> clazz, final int batchSize) {
+        mIterator = find.with(new QueryModifier() {
+            @Override
+            public void modify(DBCursor cursor) {
+                cursor.batchSize(batchSize);
+                mCursor = cursor;
+            }
+        }).as(clazz).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mIterator.hasNext();
+    }
+
+    @Override
+    public T next() {
+        return mIterator.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+    }
+
+}
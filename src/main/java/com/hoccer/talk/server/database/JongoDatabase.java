@@ -1,18 +1,23 @@
 package com.hoccer.talk.server.database;
 
+import com.codahale.metrics.MetricRegistry;
 import com.hoccer.talk.model.*;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServerConfiguration;
+import com.hoccer.talk.util.NamedThreadFactory;
 import com.mongodb.DB;
 import com.mongodb.Mongo;
 import com.mongodb.MongoOptions;
-import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 import org.apache.log4j.Logger;
 import org.jongo.Jongo;
 import org.jongo.MongoCollection;
 
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Database implementation using the Jongo mapper to MongoDB
@@ -25,6 +30,7 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     private static final Logger LOG = Logger.getLogger(JongoDatabase.class);
     private static final long GROUPKEY_LOCK_RETENTION_TIMEOUT = 1000 * 30; // in milliseconds
+    private static final long SHUTDOWN_TIMEOUT = 30; // in seconds
 
     /**
      * Mongo connection pool
@@ -54,22 +60,50 @@ public class JongoDatabase implements ITalkServerDatabase {
     MongoCollection mGroupMembers;
     MongoCollection mEnvironments;
 
+    GroupMembershipIndex mGroupMembershipIndex;
+
+    AudienceIndex mAudienceIndex;
+
+    int mBatchSize;
+
+    /**
+     * Write concerns and timers for all writes
+     */
+    JongoWritePolicy mWritePolicy;
+
+    JongoIndexManager mIndexManager;
+
+    NearbyEnvironmentEngine mNearbyEnvironments;
+
+    /**
+     * Writes nearby environments behind the in-memory engine
+     */
+    ExecutorService mEnvironmentWriter;
+
+    private final ObjectCloner mCloner = new ObjectCloner();
+
     public JongoDatabase(TalkServerConfiguration configuration) {
+        this(configuration, new MetricRegistry());
+    }
+
+    public JongoDatabase(TalkServerConfiguration configuration, MetricRegistry metrics) {
         mCollections = new ArrayList<MongoCollection>();
         mMongo = createMongoClient(configuration);
-        initialize(configuration.getJongoDb());
+        mBatchSize = configuration.getJongoBatchSize();
+        mWritePolicy = new JongoWritePolicy(configuration.getJongoWriteConcerns(), metrics);
+        initialize(configuration);
     }
 
     public JongoDatabase(TalkServerConfiguration configuration, Mongo mongodb) {
         mCollections = new ArrayList<MongoCollection>();
         mMongo = mongodb;
-        initialize(configuration.getJongoDb());
+        mBatchSize = configuration.getJongoBatchSize();
+        mWritePolicy = new JongoWritePolicy(configuration.getJongoWriteConcerns(), new MetricRegistry());
+        initialize(configuration);
     }
 
     private Mongo createMongoClient(TalkServerConfiguration configuration) {
 
-        // write concern for all collections
-        // WriteConcern wc = WriteConcern.JOURNALED; //??? not used?
         // create connection pool
         try {
             MongoOptions options = new MongoOptions();
@@ -83,7 +117,8 @@ public class JongoDatabase implements ITalkServerDatabase {
         }
     }
 
-    private void initialize(String dbName) {
+    private void initialize(TalkServerConfiguration configuration) {
+        String dbName = configuration.getJongoDb();
         LOG.info("Initializing jongo with database " + dbName);
 
         // create db accessor
@@ -101,14 +136,45 @@ public class JongoDatabase implements ITalkServerDatabase {
         mGroups = getCollection("group");
         mGroupMembers = getCollection("groupMember");
         mEnvironments = getCollection("environment");
+        // create and verify indexes
+        mIndexManager = new JongoIndexManager(mDb);
+        mIndexManager.ensureIndexes(configuration.isJongoEnsureIndexes());
+        if (configuration.getJongoProfileSlowMs() > 0) {
+            mIndexManager.startSampling(configuration.getJongoProfileSlowMs(),
+                    configuration.getJongoProfileSampleInterval());
+        }
+        // build membership index
+        mGroupMembershipIndex = new GroupMembershipIndex();
+        mGroupMembershipIndex.load(mGroupMembers.find().projection(GroupMembershipView.PROJECTION)
+                .as(GroupMembershipView.class).iterator());
+        mAudienceIndex = new AudienceIndex(mGroupMembershipIndex);
+        mAudienceIndex.load(mRelationships.find("{state:#}", TalkRelationship.STATE_FRIEND)
+                .as(TalkRelationship.class).iterator());
+        // load nearby environments for in-memory matching
+        mNearbyEnvironments = new NearbyEnvironmentEngine();
+        mNearbyEnvironments.load(mEnvironments.find("{type:#}", TalkEnvironment.TYPE_NEARBY)
+                .as(TalkEnvironment.class).iterator());
+        mEnvironmentWriter = Executors.newSingleThreadExecutor(new NamedThreadFactory("environment-writer"));
     }
 
     private MongoCollection getCollection(String name) {
-        MongoCollection res = mJongo.getCollection(name).withWriteConcern(WriteConcern.JOURNALED);
+        MongoCollection res = mJongo.getCollection(name);
         mCollections.add(res);
         return res;
     }
 
+    private JongoWriter writer(MongoCollection collection, String operation) {
+        return mWritePolicy.writer(collection, operation);
+    }
+
+    /**
+     * Set the field covered by the TTL index of the collection, the documents are deleted by mongodb once expired
+     */
+    private void setExpiry(MongoCollection collection, Date expiry, String query, Object... parameters) {
+        writer(collection, JongoWritePolicy.TOUCH).update(query, parameters)
+                .with("{$set: {" + Expiry.FIELD + ": #}}", expiry);
+    }
+
     @Override
     public Map<String, Long> getStatistics() {
         HashMap<String, Long> res = new HashMap<String, Long>();
@@ -129,12 +195,33 @@ public class JongoDatabase implements ITalkServerDatabase {
         return res;
     }
 
+    @Override
+    public DatabaseCursor<TalkClient> iterateAllClients() {
+        return new JongoCursor<TalkClient>(mClients.find(), TalkClient.class, mBatchSize);
+    }
+
     @Override
     public TalkClient findClientById(String clientId) {
         return mClients.findOne("{clientId:#}", clientId)
                 .as(TalkClient.class);
     }
 
+    @Override
+    public Set<String> existingClientIds(Collection<String> clientIds) {
+        Set<String> res = new HashSet<String>();
+        if (clientIds.isEmpty()) {
+            return res;
+        }
+        Iterator<TalkClient> it =
+                mClients.find("{clientId: {$in: #}}", clientIds)
+                        .projection("{clientId: 1}")
+                        .as(TalkClient.class).iterator();
+        while (it.hasNext()) {
+            res.add(it.next().getClientId());
+        }
+        return res;
+    }
+
     @Override
     public TalkClient findClientByApnsToken(String apnsToken) {
         return mClients.findOne("{apnsToken:#}", apnsToken)
@@ -143,7 +230,7 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void saveClient(TalkClient client) {
-        mClients.save(client);
+        writer(mClients, JongoWritePolicy.SAVE).save(client);
     }
 
     @Override
@@ -152,14 +239,29 @@ public class JongoDatabase implements ITalkServerDatabase {
                 .as(TalkMessage.class);
     }
 
+    @Override
+    public List<TalkMessage> findMessagesByIds(Collection<String> messageIds) {
+        List<TalkMessage> res = new ArrayList<TalkMessage>();
+        if (messageIds.isEmpty()) {
+            return res;
+        }
+        Iterator<TalkMessage> it =
+                mMessages.find("{messageId: {$in: #}}", messageIds)
+                        .as(TalkMessage.class).iterator();
+        while (it.hasNext()) {
+            res.add(it.next());
+        }
+        return res;
+    }
+
     @Override
     public void deleteMessage(TalkMessage message) {
-        mMessages.remove("{messageId:#}", message.getMessageId());
+        writer(mMessages, JongoWritePolicy.REMOVE).remove("{messageId:#}", message.getMessageId());
     }
 
     @Override
     public void saveMessage(TalkMessage message) {
-        mMessages.save(message);
+        writer(mMessages, JongoWritePolicy.SAVE).save(message);
     }
 
     @Override
@@ -180,6 +282,11 @@ public class JongoDatabase implements ITalkServerDatabase {
         return res;
     }
 
+    @Override
+    public DatabaseCursor<TalkDelivery> iterateDeliveriesInState(String state) {
+        return new JongoCursor<TalkDelivery>(mDeliveries.find("{state:#}", state), TalkDelivery.class, mBatchSize);
+    }
+
     @Override
     public List<TalkDelivery> findDeliveriesForClient(String clientId) {
         List<TalkDelivery> res = new ArrayList<TalkDelivery>();
@@ -242,12 +349,42 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteDelivery(TalkDelivery delivery) {
-        mDeliveries.remove("{messageId:#,receiverId:#}", delivery.getMessageId(), delivery.getReceiverId());
+        writer(mDeliveries, JongoWritePolicy.REMOVE).remove("{messageId:#,receiverId:#}", delivery.getMessageId(), delivery.getReceiverId());
     }
 
     @Override
     public void saveDelivery(TalkDelivery delivery) {
-        mDeliveries.save(delivery);
+        writer(mDeliveries, JongoWritePolicy.SAVE).save(delivery);
+    }
+
+    @Override
+    public void saveDeliveries(List<TalkDelivery> deliveries) {
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        // one unordered bulk insert instead of a write per delivery
+        writer(mDeliveries, JongoWritePolicy.SAVE).insertAll(deliveries.toArray());
+    }
+
+    @Override
+    public boolean updateDeliveryState(String messageId, String receiverId,
+                                       String expectedState, String newState, Date timeChanged) {
+        WriteResult result = writer(mDeliveries, JongoWritePolicy.UPDATE)
+                .update("{messageId:#,receiverId:#,state:#}", messageId, receiverId, expectedState)
+                .with("{$set: {state:#, timeChanged:#}}", newState, timeChanged);
+        return result.getN() > 0;
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedIn(String messageId, String receiverId, Date timeUpdatedIn) {
+        writer(mDeliveries, JongoWritePolicy.TOUCH).update("{messageId:#,receiverId:#}", messageId, receiverId)
+                .with("{$set: {timeUpdatedIn:#}}", timeUpdatedIn);
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedOut(String messageId, String receiverId, Date timeUpdatedOut) {
+        writer(mDeliveries, JongoWritePolicy.TOUCH).update("{messageId:#,receiverId:#}", messageId, receiverId)
+                .with("{$set: {timeUpdatedOut:#}}", timeUpdatedOut);
     }
 
     @Override
@@ -279,12 +416,13 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteToken(TalkToken token) {
-        mTokens.remove("{clientId:#,secret:#}", token.getClientId(), token.getSecret());
+        writer(mTokens, JongoWritePolicy.REMOVE).remove("{clientId:#,secret:#}", token.getClientId(), token.getSecret());
     }
 
     @Override
     public void saveToken(TalkToken token) {
-        mTokens.save(token);
+        writer(mTokens, JongoWritePolicy.SAVE).save(token);
+        setExpiry(mTokens, Expiry.of(token), "{clientId:#,secret:#}", token.getClientId(), token.getSecret());
     }
 
     @Override
@@ -297,47 +435,40 @@ public class JongoDatabase implements ITalkServerDatabase {
     public List<TalkPresence> findPresencesChangedAfter(String clientId, Date lastKnown) {
         // result array
         List<TalkPresence> res = new ArrayList<TalkPresence>();
-        // set to collect clients into
-        Set<String> clients = new HashSet<String>();
-        // collect clients known through relationships
-        List<TalkRelationship> relationships = findRelationshipsByOtherClient(clientId);
-        for (TalkRelationship relationship : relationships) {
-            // if the relation is friendly
-            if (relationship.isFriend()) {
-                clients.add(relationship.getClientId());
-            }
+        // clients that can see our presence can be seen by us
+        Set<String> clients = mAudienceIndex.getAudience(clientId);
+        if (clients.isEmpty()) {
+            return res;
+        }
+        // collect changed presences in one go
+        Iterator<TalkPresence> it =
+                mPresences.find("{clientId: {$in: #}, timestamp: {$gt: #}}", clients, lastKnown)
+                        .as(TalkPresence.class).iterator();
+        while (it.hasNext()) {
+            res.add(it.next());
         }
-        // collect clients known through groups
-        List<TalkGroupMember> ownMembers = findGroupMembersForClient(clientId);
-        for (TalkGroupMember ownMember : ownMembers) {
-            String groupId = ownMember.getGroupId();
-            if (ownMember.isInvited() || ownMember.isJoined()) {
-                List<TalkGroupMember> otherMembers = findGroupMembersById(groupId);
-                for (TalkGroupMember otherMember : otherMembers) {
-                    if (otherMember.isInvited() || otherMember.isJoined()) {
-                        clients.add(otherMember.getClientId());
-                    }
-                }
-            }
+        // return them
+        return res;
+    }
+
+    @Override
+    public List<TalkPresence> findPresencesForClients(Collection<String> clientIds) {
+        List<TalkPresence> res = new ArrayList<TalkPresence>();
+        if (clientIds.isEmpty()) {
+            return res;
         }
-        // remove self
-        clients.remove(clientId);
-        // collect presences
-        for (String client : clients) {
-            TalkPresence pres = findPresenceForClient(client);
-            if (pres != null) {
-                if (pres.getTimestamp().after(lastKnown)) {
-                    res.add(pres);
-                }
-            }
+        Iterator<TalkPresence> it =
+                mPresences.find("{clientId: {$in: #}}", clientIds)
+                        .as(TalkPresence.class).iterator();
+        while (it.hasNext()) {
+            res.add(it.next());
         }
-        // return them
         return res;
     }
 
     @Override
     public void savePresence(TalkPresence presence) {
-        mPresences.save(presence);
+        writer(mPresences, JongoWritePolicy.SAVE).save(presence);
     }
 
     @Override
@@ -358,14 +489,19 @@ public class JongoDatabase implements ITalkServerDatabase {
         return res;
     }
 
+    @Override
+    public DatabaseCursor<TalkKey> iterateKeysOlderThan(Date timestamp) {
+        return new JongoCursor<TalkKey>(mKeys.find("{timestamp: {$lt: #}}", timestamp), TalkKey.class, mBatchSize);
+    }
+
     @Override
     public void deleteKey(TalkKey key) {
-        mKeys.remove("{clientId:#,keyId:#}", key.getClientId(), key.getKeyId());
+        writer(mKeys, JongoWritePolicy.REMOVE).remove("{clientId:#,keyId:#}", key.getClientId(), key.getKeyId());
     }
 
     @Override
     public void saveKey(TalkKey key) {
-        mKeys.save(key);
+        writer(mKeys, JongoWritePolicy.SAVE).save(key);
     }
 
     @Override
@@ -424,13 +560,25 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteRelationship(TalkRelationship relationship) {
-        mRelationships.remove("{clientId:#,otherClientId:#}",
+        writer(mRelationships, JongoWritePolicy.REMOVE).remove("{clientId:#,otherClientId:#}",
                 relationship.getClientId(), relationship.getOtherClientId());
+        mAudienceIndex.remove(relationship);
     }
 
     @Override
     public void saveRelationship(TalkRelationship relationship) {
-        mRelationships.save(relationship);
+        writer(mRelationships, JongoWritePolicy.SAVE).save(relationship);
+        Date expiry = Expiry.of(relationship);
+        if (expiry != null) {
+            setExpiry(mRelationships, expiry, "{clientId:#,otherClientId:#}",
+                    relationship.getClientId(), relationship.getOtherClientId());
+        }
+        mAudienceIndex.update(relationship);
+    }
+
+    @Override
+    public AudienceIndex getAudienceIndex() {
+        return mAudienceIndex;
     }
 
     @Override
@@ -440,7 +588,7 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteGroup(TalkGroup group) {
-        mGroups.remove("{groupId:#}", group.getGroupId());
+        writer(mGroups, JongoWritePolicy.REMOVE).remove("{groupId:#}", group.getGroupId());
     }
 
 
@@ -452,41 +600,57 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     private List<TalkGroup> findGroupsByClientIdChangedAfterV1(String clientId, Date lastKnown) {
         // indirect query
-        List<TalkGroup> res = new ArrayList<TalkGroup>();
-        List<TalkGroupMember> members = findGroupMembersForClient(clientId);
-        for (TalkGroupMember member : members) {
+        List<String> groupIds = new ArrayList<String>();
+        List<GroupMembershipView> members = findGroupMembershipsForClient(clientId);
+        for (GroupMembershipView member : members) {
             if (member.isMember() || member.isInvited()) {
-                TalkGroup group = findGroupById(member.getGroupId());
-                if (group == null) {
-                    throw new RuntimeException("Internal inconsistency, could not find group "+member.getGroupId()+ "for member client "+clientId);
-                }
-                if(group.getLastChanged() == null || lastKnown == null || lastKnown.getTime() == 0 || group.getLastChanged().after(lastKnown)) {
-                    res.add(group);
-                }
-             }
+                groupIds.add(member.getGroupId());
+            }
         }
-        return res;
+        return findGroupsByIdsChangedAfter(groupIds, lastKnown);
     }
 
     private List<TalkGroup> findGroupsByClientIdChangedAfterV2(String clientId, Date lastKnown) {
         // indirect query
-        List<TalkGroup> res = new ArrayList<TalkGroup>();
-        List<TalkGroupMember> members = findGroupMembersByIdWithStates(clientId, new String[]{TalkGroupMember.STATE_JOINED, TalkGroupMember.STATE_INVITED});
+        List<String> groupIds = new ArrayList<String>();
+        List<TalkGroupMember> members = findGroupMembersForClientWithStates(clientId, new String[]{TalkGroupMember.STATE_JOINED, TalkGroupMember.STATE_INVITED});
         for (TalkGroupMember member : members) {
-                TalkGroup group = findGroupById(member.getGroupId());
-                if (group == null) {
-                    throw new RuntimeException("Internal inconsistency, could not find group "+member.getGroupId()+ "for member client "+clientId);
-                }
-                if(group.getLastChanged() == null || lastKnown == null || lastKnown.getTime() == 0 || group.getLastChanged().after(lastKnown)) {
-                    res.add(group);
-                }
+            groupIds.add(member.getGroupId());
+        }
+        return findGroupsByIdsChangedAfter(groupIds, lastKnown);
+    }
+
+    /**
+     * Fetches all given groups changed after lastKnown with a single query
+     * <p/>
+     * Groups without a change date are always returned, as are all groups
+     * if lastKnown is not set.
+     */
+    private List<TalkGroup> findGroupsByIdsChangedAfter(List<String> groupIds, Date lastKnown) {
+        List<TalkGroup> res = new ArrayList<TalkGroup>();
+        if (groupIds.isEmpty()) {
+            return res;
+        }
+        Iterator<TalkGroup> it;
+        if (lastKnown == null || lastKnown.getTime() == 0) {
+            it = mGroups.find("{groupId: {$in: #}}", groupIds)
+                    .as(TalkGroup.class).iterator();
+        } else {
+            it = mGroups.find("{groupId: {$in: #}, $or: [{lastChanged: {$gt: #}}, {lastChanged: null}]}", groupIds, lastKnown)
+                    .as(TalkGroup.class).iterator();
+        }
+        while (it.hasNext()) {
+            res.add(it.next());
+        }
+        if ((lastKnown == null || lastKnown.getTime() == 0) && res.size() < groupIds.size()) {
+            LOG.warn("Internal inconsistency, found only " + res.size() + " of " + groupIds.size() + " groups " + groupIds);
         }
         return res;
     }
 
     @Override
     public void saveGroup(TalkGroup group) {
-        mGroups.save(group);
+        writer(mGroups, JongoWritePolicy.SAVE).save(group);
     }
 
     @Override
@@ -582,27 +746,74 @@ public class JongoDatabase implements ITalkServerDatabase {
                 .as(TalkGroupMember.class);
     }
 
+    @Override
+    public GroupMembershipView findGroupMembershipForClient(String groupId, String clientId) {
+        return mGroupMembers.findOne("{groupId:#,clientId:#}", groupId, clientId)
+                .projection(GroupMembershipView.PROJECTION)
+                .as(GroupMembershipView.class);
+    }
+
+    @Override
+    public List<GroupMembershipView> findGroupMembershipsForClient(String clientId) {
+        List<GroupMembershipView> res = new ArrayList<GroupMembershipView>();
+        Iterator<GroupMembershipView> it =
+                mGroupMembers.find("{clientId:#}", clientId)
+                        .projection(GroupMembershipView.PROJECTION)
+                        .as(GroupMembershipView.class).iterator();
+        while (it.hasNext()) {
+            res.add(it.next());
+        }
+        return res;
+    }
+
     @Override
     public void saveGroupMember(TalkGroupMember groupMember) {
-        mGroupMembers.save(groupMember);
+        writer(mGroupMembers, JongoWritePolicy.SAVE).save(groupMember);
+        mGroupMembershipIndex.update(groupMember);
+    }
+
+    @Override
+    public GroupMembershipIndex getGroupMembershipIndex() {
+        return mGroupMembershipIndex;
     }
 
     @Override
     public void saveEnvironment(TalkEnvironment environment) {
-        mEnvironments.save(environment);
+        if (NearbyEnvironmentEngine.handles(environment.getType())) {
+            mNearbyEnvironments.put(environment);
+            final TalkEnvironment snapshot = mCloner.copy(environment);
+            mEnvironmentWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer(mEnvironments, JongoWritePolicy.SAVE)
+                                .update("{type:#, clientId:#}", snapshot.getType(), snapshot.getClientId())
+                                .upsertMerge(snapshot);
+                    } catch (Exception e) {
+                        LOG.error("error writing environment of client " + snapshot.getClientId(), e);
+                    }
+                }
+            });
+        } else {
+            writer(mEnvironments, JongoWritePolicy.SAVE).save(environment);
+        }
     }
 
     @Override
     public TalkEnvironment findEnvironmentByClientId(String type, String clientId) {
+        if (NearbyEnvironmentEngine.handles(type)) {
+            return mNearbyEnvironments.findByClientId(clientId);
+        }
         return mEnvironments.findOne("{type:#, clientId:#}", type, clientId)
                 .as(TalkEnvironment.class);
     }
 
     @Override
     public List<TalkEnvironment> findEnvironmentsForGroup(String groupId) {
-        List<TalkEnvironment> res = new ArrayList<TalkEnvironment>();
+        // nearby environments are taken from memory, the stored ones may lag behind
+        List<TalkEnvironment> res = mNearbyEnvironments.findForGroup(groupId);
         Iterator<TalkEnvironment> it =
-                mEnvironments.find("{groupId:#}", groupId)
+                mEnvironments.find("{groupId:#, type: {$ne: #}}", groupId, TalkEnvironment.TYPE_NEARBY)
                         .as(TalkEnvironment.class).iterator();
         while (it.hasNext()) {
             res.add(it.next());
@@ -612,8 +823,12 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public List<TalkEnvironment> findEnvironmentsMatching(TalkEnvironment environment) {
-        mEnvironments.ensureIndex("{geoLocation: '2dsphere'}");
+        if (NearbyEnvironmentEngine.handles(environment.getType())) {
+            return mNearbyEnvironments.findMatching(environment);
+        }
+
         List<TalkEnvironment> res = new ArrayList<TalkEnvironment>();
+        Set<String> found = new HashSet<String>();
 
         // do geospatial search
         Double[] searchCenter = environment.getGeoLocation();
@@ -631,7 +846,10 @@ public class JongoDatabase implements ITalkServerDatabase {
             Iterator<TalkEnvironment> it = mEnvironments.find("{type:#, geoLocation : { $geoWithin : { $centerSphere : [ [# , #] , # ] } } }", environment.getType(), searchCenter[0], searchCenter[1], searchRadiusRad)
                     .as(TalkEnvironment.class).iterator();
             while (it.hasNext()) {
-                res.add(it.next());
+                TalkEnvironment te = it.next();
+                if (found.add(te.getGroupId() + "/" + te.getClientId())) {
+                    res.add(te);
+                }
             }
             LOG.debug("found " + res.size() + " environments by geolocation");
         }
@@ -647,14 +865,7 @@ public class JongoDatabase implements ITalkServerDatabase {
             while (it.hasNext()) {
                 TalkEnvironment te = it.next();
                 ++totalFound;
-                boolean found = false;
-                for (TalkEnvironment rte : res) {
-                    if (rte.getGroupId().equals(te.getGroupId()) && rte.getClientId().equals(te.getClientId())) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
+                if (found.add(te.getGroupId() + "/" + te.getClientId())) {
                     res.add(te);
                     ++newFound;
                 }
@@ -673,14 +884,7 @@ public class JongoDatabase implements ITalkServerDatabase {
             while (it.hasNext()) {
                 TalkEnvironment te = it.next();
                 ++totalFound;
-                boolean found = false;
-                for (TalkEnvironment rte : res) {
-                    if (rte.getGroupId().equals(te.getGroupId()) && rte.getClientId().equals(te.getClientId())) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
+                if (found.add(te.getGroupId() + "/" + te.getClientId())) {
                     res.add(te);
                     ++newFound;
                 }
@@ -694,7 +898,51 @@ public class JongoDatabase implements ITalkServerDatabase {
 
     @Override
     public void deleteEnvironment(TalkEnvironment environment) {
-        mEnvironments.remove("{type:#, clientId:#}", environment.getType(), environment.getClientId());
+        if (NearbyEnvironmentEngine.handles(environment.getType())) {
+            final String type = environment.getType();
+            final String clientId = environment.getClientId();
+            mNearbyEnvironments.remove(clientId);
+            mEnvironmentWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer(mEnvironments, JongoWritePolicy.REMOVE).remove("{type:#, clientId:#}", type, clientId);
+                    } catch (Exception e) {
+                        LOG.error("error removing environment of client " + clientId, e);
+                    }
+                }
+            });
+        } else {
+            writer(mEnvironments, JongoWritePolicy.REMOVE).remove("{type:#, clientId:#}", environment.getType(), environment.getClientId());
+        }
+    }
+
+    @Override
+    public int purgeExpired(Date now) {
+        // tokens and relationships are deleted by TTL indexes, except those
+        // written before the expiry field existed which are purged here
+        int purged = writer(mTokens, JongoWritePolicy.REMOVE)
+                .remove("{" + Expiry.FIELD + ": {$exists: false}, $or: [{state: #}, {expiryTime: {$lt: #}}]}",
+                        TalkToken.STATE_SPENT, now)
+                .getN();
+        purged += writer(mRelationships, JongoWritePolicy.REMOVE)
+                .remove("{" + Expiry.FIELD + ": {$exists: false}, state: #, lastChanged: {$lt: #}}",
+                        TalkRelationship.STATE_NONE, Expiry.relationshipsChangedBefore(now))
+                .getN();
+        return purged;
+    }
+
+    @Override
+    public List<TalkEnvironment> findExpiredEnvironments(Date now) {
+        List<TalkEnvironment> res = mNearbyEnvironments.findExpired(now);
+        Iterator<TalkEnvironment> it = mEnvironments
+                .find("{type: {$ne: #}, timeReceived: {$lt: #}}",
+                        TalkEnvironment.TYPE_NEARBY, Expiry.environmentsReceivedBefore(now))
+                .as(TalkEnvironment.class).iterator();
+        while (it.hasNext()) {
+            res.add(it.next());
+        }
+        return res;
     }
 
     @Override
@@ -712,4 +960,19 @@ public class JongoDatabase implements ITalkServerDatabase {
         }
     }
 
+    @Override
+    public void shutdown() {
+        // write out queued environment updates and removals
+        mEnvironmentWriter.shutdown();
+        try {
+            if (!mEnvironmentWriter.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                LOG.warn("environment writer did not finish within " + SHUTDOWN_TIMEOUT + "s");
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("interrupted while waiting for the environment writer");
+            Thread.currentThread().interrupt();
+        }
+        mIndexManager.shutdown();
+    }
+
 }
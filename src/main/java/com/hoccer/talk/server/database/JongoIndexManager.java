@@ -0,0 +1,244 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.util.NamedThreadFactory;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Declares, creates and verifies the indexes of the Jongo database
+ * <p/>
+ * All indexes required by the queries of JongoDatabase are declared
+ * here. On startup missing indexes are created (or only reported if
+ * creation is disabled) and the result is verified against the index
+ * information of the server.
+ * <p/>
+ * Optionally the mongodb profiler is enabled for slow operations and
+ * its samples are checked periodically for queries that had to scan
+ * a whole collection. Each such query shape is reported once.
+ */
+public class JongoIndexManager {
+
+    private static final Logger LOG = Logger.getLogger(JongoIndexManager.class);
+
+    private static final String PROFILE_COLLECTION = "system.profile";
+
+    private static class IndexDefinition {
+        final String collection;
+        final DBObject keys;
+        final DBObject options;
+
+        IndexDefinition(String collection, String keys, String options) {
+            this.collection = collection;
+            this.keys = (DBObject) JSON.parse(keys);
+            this.options = options == null ? new BasicDBObject() : (DBObject) JSON.parse(options);
+        }
+
+        @Override
+        public String toString() {
+            return collection + " " + keys;
+        }
+    }
+
+    private final DB mDb;
+
+    private final List<IndexDefinition> mIndexes = new ArrayList<IndexDefinition>();
+
+    private ScheduledExecutorService mSampler;
+
+    private Date mLastSample = new Date();
+
+    private final Set<String> mReportedQueries = new HashSet<String>();
+
+    public JongoIndexManager(DB db) {
+        mDb = db;
+        // client lookups
+        declare("client", "{clientId: 1}");
+        declare("client", "{apnsToken: 1}", "{sparse: true}");
+        // message lookups
+        declare("message", "{messageId: 1}");
+        declare("message", "{messageId: 1, senderId: 1}");
+        // delivery lookups and scans by state
+        declare("delivery", "{messageId: 1, receiverId: 1}");
+        declare("delivery", "{messageId: 1, senderId: 1, receiverId: 1}");
+        declare("delivery", "{receiverId: 1, state: 1}");
+        declare("delivery", "{senderId: 1, state: 1}");
+        declare("delivery", "{state: 1}");
+        // token lookups and expiry
+        declare("token", "{clientId: 1, secret: 1}");
+        declare("token", "{purpose: 1, secret: 1}");
+        declare("token", "{expiresAt: 1}", "{expireAfterSeconds: 0}");
+        // relationships in both directions and expiry of reset ones
+        declare("relationship", "{clientId: 1, otherClientId: 1}");
+        declare("relationship", "{clientId: 1, state: 1}");
+        declare("relationship", "{clientId: 1, lastChanged: 1}");
+        declare("relationship", "{otherClientId: 1}");
+        declare("relationship", "{expiresAt: 1}", "{expireAfterSeconds: 0}");
+        // presences by client and change
+        declare("presence", "{clientId: 1}");
+        declare("presence", "{clientId: 1, timestamp: 1}");
+        // keys by client and age
+        declare("key", "{clientId: 1, keyId: 1}");
+        declare("key", "{timestamp: 1}");
+        // groups and memberships in both directions
+        declare("group", "{groupId: 1}");
+        declare("groupMember", "{groupId: 1, clientId: 1}");
+        declare("groupMember", "{clientId: 1}");
+        // environments by client, group, for nearby matching and expiry
+        declare("environment", "{type: 1, clientId: 1}");
+        declare("environment", "{groupId: 1}");
+        declare("environment", "{geoLocation: '2dsphere'}");
+        declare("environment", "{type: 1, bssids: 1}");
+        declare("environment", "{identifiers: 1}");
+        declare("environment", "{timeReceived: 1}");
+    }
+
+    private void declare(String collection, String keys) {
+        declare(collection, keys, null);
+    }
+
+    private void declare(String collection, String keys, String options) {
+        mIndexes.add(new IndexDefinition(collection, keys, options));
+    }
+
+    /**
+     * Create missing indexes if requested and verify that all declared indexes exist
+     *
+     * @return true if all declared indexes exist
+     */
+    public boolean ensureIndexes(boolean create) {
+        long startTime = System.currentTimeMillis();
+        int created = 0;
+        for (IndexDefinition index : mIndexes) {
+            if (!exists(index)) {
+                if (create) {
+                    LOG.info("creating index " + index);
+                    mDb.getCollection(index.collection).ensureIndex(index.keys, index.options);
+                    created++;
+                } else {
+                    LOG.warn("missing index " + index);
+                }
+            }
+        }
+
+        List<IndexDefinition> missing = new ArrayList<IndexDefinition>();
+        for (IndexDefinition index : mIndexes) {
+            if (!exists(index)) {
+                missing.add(index);
+            }
+        }
+        if (missing.isEmpty()) {
+            LOG.info("verified " + mIndexes.size() + " indexes, created " + created
+                    + " (took " + (System.currentTimeMillis() - startTime) + "ms)");
+        } else {
+            LOG.error("missing " + missing.size() + " of " + mIndexes.size() + " indexes: " + missing);
+        }
+        return missing.isEmpty();
+    }
+
+    private boolean exists(IndexDefinition index) {
+        for (DBObject info : mDb.getCollection(index.collection).getIndexInfo()) {
+            Object keys = info.get("key");
+            if (keys instanceof DBObject && sameKeys(index.keys, (DBObject) keys)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compare index keys in order, the server may report numeric directions as doubles
+     */
+    private static boolean sameKeys(DBObject declared, DBObject actual) {
+        List<String> declaredFields = new ArrayList<String>(declared.keySet());
+        List<String> actualFields = new ArrayList<String>(actual.keySet());
+        if (!declaredFields.equals(actualFields)) {
+            return false;
+        }
+        for (String field : declaredFields) {
+            Object declaredValue = declared.get(field);
+            Object actualValue = actual.get(field);
+            if (declaredValue instanceof Number && actualValue instanceof Number) {
+                if (((Number) declaredValue).intValue() != ((Number) actualValue).intValue()) {
+                    return false;
+                }
+            } else if (!declaredValue.equals(actualValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enable the profiler for operations slower than slowMs and check its samples periodically
+     */
+    public void startSampling(int slowMs, int intervalSeconds) {
+        mDb.command(new BasicDBObject("profile", 1).append("slowms", slowMs));
+        LOG.info("profiling operations slower than " + slowMs + "ms, sampling every " + intervalSeconds + "s");
+        mSampler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("index-sampler"));
+        mSampler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkSlowQueries();
+                } catch (Throwable t) {
+                    LOG.error("error checking slow queries", t);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Report sampled queries that were executed without a supporting index
+     */
+    public void checkSlowQueries() {
+        DBCollection profile = mDb.getCollection(PROFILE_COLLECTION);
+        DBCursor cursor = profile.find(new BasicDBObject("ts", new BasicDBObject("$gt", mLastSample)));
+        try {
+            while (cursor.hasNext()) {
+                DBObject sample = cursor.next();
+                Object ts = sample.get("ts");
+                if (ts instanceof Date && ((Date) ts).after(mLastSample)) {
+                    mLastSample = (Date) ts;
+                }
+                Object planSummary = sample.get("planSummary");
+                if (planSummary == null || !planSummary.toString().contains("COLLSCAN")) {
+                    continue;
+                }
+                Object query = sample.containsField("query") ? sample.get("query") : sample.get("command");
+                String shape = sample.get("ns") + " " + shapeOf(query);
+                if (mReportedQueries.add(shape)) {
+                    LOG.warn("query without supporting index (" + sample.get("millis") + "ms): " + shape);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the field names of a query, without their values
+     */
+    private static String shapeOf(Object query) {
+        if (!(query instanceof DBObject)) {
+            return String.valueOf(query);
+        }
+        return new TreeSet<String>(((DBObject) query).keySet()).toString();
+    }
+
+    public void shutdown() {
+        if (mSampler != null) {
+            mSampler.shutdownNow();
+        }
+    }
+
+}
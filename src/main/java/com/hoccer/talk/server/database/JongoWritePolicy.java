@@ -0,0 +1,132 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.MetricRegistry;
+import com.mongodb.WriteConcern;
+import org.apache.log4j.Logger;
+import org.jongo.MongoCollection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Durability tiers for the writes of the Jongo database
+ * <p/>
+ * Each write is classified by collection and operation and performed
+ * with the write concern of its tier. Messages and deliveries must
+ * survive a crash of the database, so they are journaled. Presences,
+ * environments and delivery timestamps are rewritten all the time and
+ * are cheap to lose, so they do not wait for the journal.
+ * <p/>
+ * Tiers are looked up as [collection].[operation], then [collection],
+ * then "default". At each step a configured tier takes precedence over
+ * the built-in one. Conditional updates report whether they matched, so
+ * they are at least acknowledged whatever tier they resolve to.
+ * <p/>
+ * Writes are timed per operation as
+ * JongoDatabase.writes.[collection].[operation] and per tier as
+ * JongoDatabase.writes.[tier].
+ */
+public class JongoWritePolicy {
+
+    private static final Logger LOG = Logger.getLogger(JongoWritePolicy.class);
+
+    /**
+     * Saves and inserts of whole documents
+     */
+    public static final String SAVE = "save";
+
+    /**
+     * Conditional partial updates of documents, their results are counted
+     */
+    public static final String UPDATE = "update";
+
+    /**
+     * Updates of informational timestamps
+     */
+    public static final String TOUCH = "touch";
+
+    /**
+     * Removal of documents
+     */
+    public static final String REMOVE = "remove";
+
+    private static final String DEFAULT = "default";
+
+    private static final String UNACKNOWLEDGED = "unacknowledged";
+
+    private static final String ACKNOWLEDGED = "acknowledged";
+
+    private static final Map<String, WriteConcern> TIERS = new HashMap<String, WriteConcern>();
+
+    static {
+        TIERS.put(UNACKNOWLEDGED, WriteConcern.UNACKNOWLEDGED);
+        TIERS.put(ACKNOWLEDGED, WriteConcern.ACKNOWLEDGED);
+        TIERS.put("journaled", WriteConcern.JOURNALED);
+        TIERS.put("fsynced", WriteConcern.FSYNCED);
+        TIERS.put("majority", WriteConcern.MAJORITY);
+    }
+
+    private static final Map<String, String> DEFAULT_TIERS = new HashMap<String, String>();
+
+    static {
+        DEFAULT_TIERS.put(DEFAULT, "journaled");
+        DEFAULT_TIERS.put("presence", "acknowledged");
+        DEFAULT_TIERS.put("environment", "acknowledged");
+        DEFAULT_TIERS.put("delivery." + TOUCH, "unacknowledged");
+    }
+
+    private final Map<String, String> mTiers;
+
+    private final MetricRegistry mMetrics;
+
+    private final Map<String, JongoWriter> mWriters = new HashMap<String, JongoWriter>();
+
+    /**
+     * @param tiers configured tiers overriding the defaults
+     */
+    public JongoWritePolicy(Map<String, String> tiers, MetricRegistry metrics) {
+        mTiers = tiers;
+        mMetrics = metrics;
+        for (Map.Entry<String, String> entry : tiers.entrySet()) {
+            if (!TIERS.containsKey(entry.getValue())) {
+                throw new RuntimeException("Unknown write concern tier '" + entry.getValue() + "' for " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return the writer for the given operation on the given collection
+     */
+    public synchronized JongoWriter writer(MongoCollection collection, String operation) {
+        String key = collection.getName() + "." + operation;
+        JongoWriter writer = mWriters.get(key);
+        if (writer == null) {
+            String tier = tierOf(collection.getName(), operation);
+            if (UPDATE.equals(operation) && UNACKNOWLEDGED.equals(tier)) {
+                // unacknowledged writes never report a match
+                LOG.warn("writing " + key + " as " + ACKNOWLEDGED + " instead of " + tier + ", its results are counted");
+                tier = ACKNOWLEDGED;
+            }
+            LOG.info("writing " + key + " as " + tier);
+            writer = new JongoWriter(collection, TIERS.get(tier),
+                    mMetrics.timer(MetricRegistry.name(JongoDatabase.class, "writes", collection.getName(), operation)),
+                    mMetrics.timer(MetricRegistry.name(JongoDatabase.class, "writes", tier)));
+            mWriters.put(key, writer);
+        }
+        return writer;
+    }
+
+    private String tierOf(String collection, String operation) {
+        String[] keys = {collection + "." + operation, collection, DEFAULT};
+        for (String key : keys) {
+            if (mTiers.containsKey(key)) {
+                return mTiers.get(key);
+            }
+            if (DEFAULT_TIERS.containsKey(key)) {
+                return DEFAULT_TIERS.get(key);
+            }
+        }
+        return null;
+    }
+
+}
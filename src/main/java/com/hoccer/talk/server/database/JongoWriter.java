@@ -0,0 +1,106 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.Timer;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import org.jongo.MongoCollection;
+
+/**
+ * Writes to a collection with the write concern of one durability tier
+ * <p/>
+ * Mirrors the write methods of MongoCollection and times every write,
+ * both for the operation and for the tier it was performed with.
+ */
+public class JongoWriter {
+
+    private final MongoCollection mCollection;
+
+    private final WriteConcern mWriteConcern;
+
+    private final Timer mOperationTimer;
+
+    private final Timer mTierTimer;
+
+    JongoWriter(MongoCollection collection, WriteConcern writeConcern, Timer operationTimer, Timer tierTimer) {
+        mCollection = collection.withWriteConcern(writeConcern);
+        mWriteConcern = writeConcern;
+        mOperationTimer = operationTimer;
+        mTierTimer = tierTimer;
+    }
+
+    public WriteResult save(Object document) {
+        Timer.Context operation = mOperationTimer.time();
+        Timer.Context tier = mTierTimer.time();
+        try {
+            return mCollection.save(document);
+        } finally {
+            tier.stop();
+            operation.stop();
+        }
+    }
+
+    /**
+     * Insert all documents, continuing after errors on single documents
+     */
+    public WriteResult insertAll(Object[] documents) {
+        Timer.Context operation = mOperationTimer.time();
+        Timer.Context tier = mTierTimer.time();
+        try {
+            return mCollection.withWriteConcern(mWriteConcern.continueOnError(true)).insert(documents);
+        } finally {
+            tier.stop();
+            operation.stop();
+        }
+    }
+
+    public WriteResult remove(String query, Object... parameters) {
+        Timer.Context operation = mOperationTimer.time();
+        Timer.Context tier = mTierTimer.time();
+        try {
+            return mCollection.remove(query, parameters);
+        } finally {
+            tier.stop();
+            operation.stop();
+        }
+    }
+
+    public Update update(String query, Object... parameters) {
+        return new Update(query, parameters);
+    }
+
+    /**
+     * Pending update, performed by with() or upsertMerge()
+     */
+    public class Update {
+        private final String mQuery;
+        private final Object[] mParameters;
+
+        Update(String query, Object[] parameters) {
+            mQuery = query;
+            mParameters = parameters;
+        }
+
+        public WriteResult with(String modifier, Object... parameters) {
+            Timer.Context operation = mOperationTimer.time();
+            Timer.Context tier = mTierTimer.time();
+            try {
+                return mCollection.update(mQuery, mParameters).with(modifier, parameters);
+            } finally {
+                tier.stop();
+                operation.stop();
+            }
+        }
+
+        public WriteResult upsertMerge(Object document) {
+            Timer.Context operation = mOperationTimer.time();
+            Timer.Context tier = mTierTimer.time();
+            try {
+                return mCollection.update(mQuery, mParameters).upsert().merge(document);
+            } finally {
+                tier.stop();
+                operation.stop();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.hoccer.talk.server.database;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded least-recently-used cache with hit/miss/eviction counters
+ * <p/>
+ * All access is synchronized on the cache itself.
+ */
+public class LruCache<K, V> {
+
+    private final String mName;
+
+    private final LinkedHashMap<K, V> mEntries;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mEvictions = new AtomicInteger();
+
+    public LruCache(String name, final int maxSize) {
+        mName = name;
+        mEntries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > maxSize) {
+                    mEvictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        V value = mEntries.get(key);
+        if (value == null) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        mEntries.put(key, value);
+    }
+
+    /**
+     * Put an entry unless one is present already
+     * <p/>
+     * Used when filling the cache from a read, so that a value
+     * written concurrently is not replaced with an older one.
+     */
+    public synchronized void putIfAbsent(K key, V value) {
+        if (!mEntries.containsKey(key)) {
+            mEntries.put(key, value);
+        }
+    }
+
+    public synchronized void remove(K key) {
+        mEntries.remove(key);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public void registerMetrics(MetricRegistry metrics, Class<?> owner) {
+        metrics.register(MetricRegistry.name(owner, mName, "hits"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mHits.intValue();
+                    }
+                });
+        metrics.register(MetricRegistry.name(owner, mName, "misses"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mMisses.intValue();
+                    }
+                });
+        metrics.register(MetricRegistry.name(owner, mName, "evictions"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mEvictions.intValue();
+                    }
+                });
+        metrics.register(MetricRegistry.name(owner, mName, "size"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return size();
+                    }
+                });
+    }
+
+}
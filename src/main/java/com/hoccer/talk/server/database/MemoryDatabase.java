@@ -0,0 +1,794 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.*;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Database implementation keeping everything in memory
+ * <p/>
+ * Entities are stored in concurrent maps under their natural keys, with
+ * secondary indexes for the lookups the server performs by client, sender
+ * or message. Group memberships and presence audiences use the same
+ * in-memory indexes as the persistent backends, environments of every
+ * type are matched by a NearbyEnvironmentEngine.
+ * <p/>
+ * Objects are copied on the way in and out, so callers get the same
+ * isolation as from a real database.
+ * <p/>
+ * Nothing is persisted. This is meant for benchmarking and profiling the
+ * server in isolation from database latency and for single-node test
+ * deployments.
+ */
+public class MemoryDatabase implements ITalkServerDatabase {
+
+    private static final Logger LOG = Logger.getLogger(MemoryDatabase.class);
+
+    /**
+     * Keys of all entities sharing a value, e.g. the deliveries of a receiver
+     */
+    private static class KeyIndex {
+        private final ConcurrentMap<String, Set<String>> mKeys = new ConcurrentHashMap<String, Set<String>>();
+
+        void add(String value, String key) {
+            Set<String> keys = mKeys.get(value);
+            if (keys == null) {
+                Set<String> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4, 0.75f, 2));
+                keys = mKeys.putIfAbsent(value, newKeys);
+                if (keys == null) {
+                    keys = newKeys;
+                }
+            }
+            keys.add(key);
+        }
+
+        void remove(String value, String key) {
+            Set<String> keys = mKeys.get(value);
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+
+        Set<String> get(String value) {
+            Set<String> keys = mKeys.get(value);
+            if (keys == null) {
+                return Collections.emptySet();
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Cursor over entities that are already in memory
+     */
+    private static class MemoryCursor<T> implements DatabaseCursor<T> {
+        private final Iterator<T> mIterator;
+
+        MemoryCursor(Iterator<T> iterator) {
+            mIterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mIterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return mIterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final ObjectCloner mCloner = new ObjectCloner();
+
+    private final ConcurrentMap<String, TalkClient> mClients = new ConcurrentHashMap<String, TalkClient>();
+    private final KeyIndex mClientsByApnsToken = new KeyIndex();
+
+    private final ConcurrentMap<String, TalkMessage> mMessages = new ConcurrentHashMap<String, TalkMessage>();
+
+    private final ConcurrentMap<String, TalkDelivery> mDeliveries = new ConcurrentHashMap<String, TalkDelivery>();
+    private final KeyIndex mDeliveriesByReceiver = new KeyIndex();
+    private final KeyIndex mDeliveriesBySender = new KeyIndex();
+    private final KeyIndex mDeliveriesByMessage = new KeyIndex();
+
+    private final ConcurrentMap<String, TalkToken> mTokens = new ConcurrentHashMap<String, TalkToken>();
+    private final KeyIndex mTokensByClient = new KeyIndex();
+    private final KeyIndex mTokensBySecret = new KeyIndex();
+
+    private final ConcurrentMap<String, TalkPresence> mPresences = new ConcurrentHashMap<String, TalkPresence>();
+
+    private final ConcurrentMap<String, TalkKey> mKeys = new ConcurrentHashMap<String, TalkKey>();
+    private final KeyIndex mKeysByClient = new KeyIndex();
+
+    private final ConcurrentMap<String, TalkRelationship> mRelationships = new ConcurrentHashMap<String, TalkRelationship>();
+    private final KeyIndex mRelationshipsByClient = new KeyIndex();
+    private final KeyIndex mRelationshipsByOtherClient = new KeyIndex();
+
+    private final ConcurrentMap<String, TalkGroup> mGroups = new ConcurrentHashMap<String, TalkGroup>();
+
+    private final ConcurrentMap<String, TalkGroupMember> mGroupMembers = new ConcurrentHashMap<String, TalkGroupMember>();
+
+    private final ConcurrentMap<String, NearbyEnvironmentEngine> mEnvironments =
+            new ConcurrentHashMap<String, NearbyEnvironmentEngine>();
+
+    private final GroupMembershipIndex mGroupMembershipIndex = new GroupMembershipIndex();
+
+    private final AudienceIndex mAudienceIndex = new AudienceIndex(mGroupMembershipIndex);
+
+    public MemoryDatabase() {
+        LOG.info("Initializing in-memory database, nothing will be persisted");
+    }
+
+    private static String key(String first, String second) {
+        return first + "/" + second;
+    }
+
+    private <T> List<T> copiesOf(Map<String, T> map, Collection<String> keys) {
+        List<T> res = new ArrayList<T>();
+        for (String key : keys) {
+            T value = map.get(key);
+            if (value != null) {
+                res.add(mCloner.copy(value));
+            }
+        }
+        return res;
+    }
+
+    private <T> List<T> copiesOf(Collection<T> values) {
+        List<T> res = new ArrayList<T>();
+        for (T value : values) {
+            res.add(mCloner.copy(value));
+        }
+        return res;
+    }
+
+    @Override
+    public Map<String, Long> getStatistics() {
+        HashMap<String, Long> res = new HashMap<String, Long>();
+        res.put("client", (long) mClients.size());
+        res.put("message", (long) mMessages.size());
+        res.put("delivery", (long) mDeliveries.size());
+        res.put("token", (long) mTokens.size());
+        res.put("relationship", (long) mRelationships.size());
+        res.put("presence", (long) mPresences.size());
+        res.put("key", (long) mKeys.size());
+        res.put("group", (long) mGroups.size());
+        res.put("groupMember", (long) mGroupMembers.size());
+        long environments = 0;
+        for (NearbyEnvironmentEngine engine : mEnvironments.values()) {
+            environments += engine.size();
+        }
+        res.put("environment", environments);
+        return res;
+    }
+
+    @Override
+    public List<TalkClient> findAllClients() {
+        return copiesOf(mClients.values());
+    }
+
+    @Override
+    public DatabaseCursor<TalkClient> iterateAllClients() {
+        final Iterator<TalkClient> clients = mClients.values().iterator();
+        return new MemoryCursor<TalkClient>(new Iterator<TalkClient>() {
+            @Override
+            public boolean hasNext() {
+                return clients.hasNext();
+            }
+
+            @Override
+            public TalkClient next() {
+                return mCloner.copy(clients.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    @Override
+    public TalkClient findClientById(String clientId) {
+        return mCloner.copy(mClients.get(clientId));
+    }
+
+    @Override
+    public Set<String> existingClientIds(Collection<String> clientIds) {
+        Set<String> res = new HashSet<String>();
+        for (String clientId : clientIds) {
+            if (mClients.containsKey(clientId)) {
+                res.add(clientId);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public TalkClient findClientByApnsToken(String apnsToken) {
+        for (String clientId : mClientsByApnsToken.get(apnsToken)) {
+            TalkClient client = mClients.get(clientId);
+            if (client != null && apnsToken.equals(client.getApnsToken())) {
+                return mCloner.copy(client);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void saveClient(TalkClient client) {
+        TalkClient previous = mClients.put(client.getClientId(), mCloner.copy(client));
+        if (previous != null && previous.getApnsToken() != null
+                && !previous.getApnsToken().equals(client.getApnsToken())) {
+            mClientsByApnsToken.remove(previous.getApnsToken(), client.getClientId());
+        }
+        if (client.getApnsToken() != null) {
+            mClientsByApnsToken.add(client.getApnsToken(), client.getClientId());
+        }
+    }
+
+    @Override
+    public TalkMessage findMessageById(String messageId) {
+        return mCloner.copy(mMessages.get(messageId));
+    }
+
+    @Override
+    public List<TalkMessage> findMessagesByIds(Collection<String> messageIds) {
+        return copiesOf(mMessages, messageIds);
+    }
+
+    @Override
+    public void deleteMessage(TalkMessage message) {
+        mMessages.remove(message.getMessageId());
+    }
+
+    @Override
+    public void saveMessage(TalkMessage message) {
+        mMessages.put(message.getMessageId(), mCloner.copy(message));
+    }
+
+    @Override
+    public TalkDelivery findDelivery(String messageId, String clientId) {
+        return mCloner.copy(mDeliveries.get(key(messageId, clientId)));
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesInState(String state) {
+        List<TalkDelivery> res = new ArrayList<TalkDelivery>();
+        for (TalkDelivery delivery : mDeliveries.values()) {
+            if (state.equals(delivery.getState())) {
+                res.add(mCloner.copy(delivery));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public DatabaseCursor<TalkDelivery> iterateDeliveriesInState(String state) {
+        return new MemoryCursor<TalkDelivery>(findDeliveriesInState(state).iterator());
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClient(String clientId) {
+        return copiesOf(mDeliveries, mDeliveriesByReceiver.get(clientId));
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForClientInState(String clientId, String state) {
+        return filterByState(findDeliveriesForClient(clientId), state);
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClient(String clientId) {
+        return copiesOf(mDeliveries, mDeliveriesBySender.get(clientId));
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesFromClientInState(String clientId, String state) {
+        return filterByState(findDeliveriesFromClient(clientId), state);
+    }
+
+    private static List<TalkDelivery> filterByState(List<TalkDelivery> deliveries, String state) {
+        List<TalkDelivery> res = new ArrayList<TalkDelivery>();
+        for (TalkDelivery delivery : deliveries) {
+            if (state.equals(delivery.getState())) {
+                res.add(delivery);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkDelivery> findDeliveriesForMessage(String messageId) {
+        return copiesOf(mDeliveries, mDeliveriesByMessage.get(messageId));
+    }
+
+    @Override
+    public void deleteDelivery(TalkDelivery delivery) {
+        String key = key(delivery.getMessageId(), delivery.getReceiverId());
+        TalkDelivery removed = mDeliveries.remove(key);
+        if (removed != null) {
+            mDeliveriesByReceiver.remove(removed.getReceiverId(), key);
+            mDeliveriesBySender.remove(removed.getSenderId(), key);
+            mDeliveriesByMessage.remove(removed.getMessageId(), key);
+        }
+    }
+
+    @Override
+    public void saveDelivery(TalkDelivery delivery) {
+        String key = key(delivery.getMessageId(), delivery.getReceiverId());
+        mDeliveries.put(key, mCloner.copy(delivery));
+        mDeliveriesByReceiver.add(delivery.getReceiverId(), key);
+        mDeliveriesBySender.add(delivery.getSenderId(), key);
+        mDeliveriesByMessage.add(delivery.getMessageId(), key);
+    }
+
+    @Override
+    public void saveDeliveries(List<TalkDelivery> deliveries) {
+        for (TalkDelivery delivery : deliveries) {
+            saveDelivery(delivery);
+        }
+    }
+
+    @Override
+    public boolean updateDeliveryState(String messageId, String receiverId,
+                                       String expectedState, String newState, Date timeChanged) {
+        String key = key(messageId, receiverId);
+        while (true) {
+            TalkDelivery current = mDeliveries.get(key);
+            if (current == null || !expectedState.equals(current.getState())) {
+                return false;
+            }
+            TalkDelivery updated = mCloner.copy(current);
+            updated.setState(newState);
+            updated.setTimeChanged(timeChanged);
+            if (mDeliveries.replace(key, current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedIn(String messageId, String receiverId, Date timeUpdatedIn) {
+        String key = key(messageId, receiverId);
+        TalkDelivery current;
+        TalkDelivery updated;
+        do {
+            current = mDeliveries.get(key);
+            if (current == null) {
+                return;
+            }
+            updated = mCloner.copy(current);
+            updated.setTimeUpdatedIn(timeUpdatedIn);
+        } while (!mDeliveries.replace(key, current, updated));
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedOut(String messageId, String receiverId, Date timeUpdatedOut) {
+        String key = key(messageId, receiverId);
+        TalkDelivery current;
+        TalkDelivery updated;
+        do {
+            current = mDeliveries.get(key);
+            if (current == null) {
+                return;
+            }
+            updated = mCloner.copy(current);
+            updated.setTimeUpdatedOut(timeUpdatedOut);
+        } while (!mDeliveries.replace(key, current, updated));
+    }
+
+    @Override
+    public List<TalkToken> findTokensByClient(String clientId) {
+        return copiesOf(mTokens, mTokensByClient.get(clientId));
+    }
+
+    @Override
+    public TalkToken findTokenByPurposeAndSecret(String purpose, String secret) {
+        for (String key : mTokensBySecret.get(secret)) {
+            TalkToken token = mTokens.get(key);
+            if (token != null && purpose.equals(token.getPurpose())) {
+                return mCloner.copy(token);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void deleteToken(TalkToken token) {
+        String key = key(token.getClientId(), token.getSecret());
+        if (mTokens.remove(key) != null) {
+            mTokensByClient.remove(token.getClientId(), key);
+            mTokensBySecret.remove(token.getSecret(), key);
+        }
+    }
+
+    @Override
+    public void saveToken(TalkToken token) {
+        String key = key(token.getClientId(), token.getSecret());
+        mTokens.put(key, mCloner.copy(token));
+        mTokensByClient.add(token.getClientId(), key);
+        mTokensBySecret.add(token.getSecret(), key);
+    }
+
+    @Override
+    public TalkPresence findPresenceForClient(String clientId) {
+        return mCloner.copy(mPresences.get(clientId));
+    }
+
+    @Override
+    public void savePresence(TalkPresence presence) {
+        mPresences.put(presence.getClientId(), mCloner.copy(presence));
+    }
+
+    @Override
+    public List<TalkPresence> findPresencesChangedAfter(String clientId, Date lastKnown) {
+        List<TalkPresence> res = new ArrayList<TalkPresence>();
+        for (String client : mAudienceIndex.getAudience(clientId)) {
+            TalkPresence presence = mPresences.get(client);
+            if (presence != null && presence.getTimestamp() != null && presence.getTimestamp().after(lastKnown)) {
+                res.add(mCloner.copy(presence));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkPresence> findPresencesForClients(Collection<String> clientIds) {
+        List<TalkPresence> res = new ArrayList<TalkPresence>();
+        for (String clientId : clientIds) {
+            TalkPresence presence = mPresences.get(clientId);
+            if (presence != null) {
+                res.add(mCloner.copy(presence));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public TalkKey findKey(String clientId, String keyId) {
+        return mCloner.copy(mKeys.get(key(clientId, keyId)));
+    }
+
+    @Override
+    public List<TalkKey> findKeys(String clientId) {
+        return copiesOf(mKeys, mKeysByClient.get(clientId));
+    }
+
+    @Override
+    public DatabaseCursor<TalkKey> iterateKeysOlderThan(Date timestamp) {
+        List<TalkKey> res = new ArrayList<TalkKey>();
+        for (TalkKey key : mKeys.values()) {
+            if (key.getTimestamp() != null && key.getTimestamp().before(timestamp)) {
+                res.add(mCloner.copy(key));
+            }
+        }
+        return new MemoryCursor<TalkKey>(res.iterator());
+    }
+
+    @Override
+    public void deleteKey(TalkKey key) {
+        String k = key(key.getClientId(), key.getKeyId());
+        if (mKeys.remove(k) != null) {
+            mKeysByClient.remove(key.getClientId(), k);
+        }
+    }
+
+    @Override
+    public void saveKey(TalkKey key) {
+        String k = key(key.getClientId(), key.getKeyId());
+        mKeys.put(k, mCloner.copy(key));
+        mKeysByClient.add(key.getClientId(), k);
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationships(String client) {
+        return copiesOf(mRelationships, mRelationshipsByClient.get(client));
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsForClientInState(String clientId, String state) {
+        List<TalkRelationship> res = new ArrayList<TalkRelationship>();
+        for (TalkRelationship relationship : findRelationships(clientId)) {
+            if (state.equals(relationship.getState())) {
+                res.add(relationship);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsByOtherClient(String other) {
+        return copiesOf(mRelationships, mRelationshipsByOtherClient.get(other));
+    }
+
+    @Override
+    public List<TalkRelationship> findRelationshipsChangedAfter(String client, Date lastKnown) {
+        List<TalkRelationship> res = new ArrayList<TalkRelationship>();
+        for (TalkRelationship relationship : findRelationships(client)) {
+            if (relationship.getLastChanged() != null && relationship.getLastChanged().after(lastKnown)) {
+                res.add(relationship);
+            }
+        }
+        return res;
+    }
+
+    @Nullable
+    @Override
+    public TalkRelationship findRelationshipBetween(String client, String otherClient) {
+        return mCloner.copy(mRelationships.get(key(client, otherClient)));
+    }
+
+    @Override
+    public void deleteRelationship(TalkRelationship relationship) {
+        String key = key(relationship.getClientId(), relationship.getOtherClientId());
+        if (mRelationships.remove(key) != null) {
+            mRelationshipsByClient.remove(relationship.getClientId(), key);
+            mRelationshipsByOtherClient.remove(relationship.getOtherClientId(), key);
+        }
+        mAudienceIndex.remove(relationship);
+    }
+
+    @Override
+    public void saveRelationship(TalkRelationship relationship) {
+        String key = key(relationship.getClientId(), relationship.getOtherClientId());
+        mRelationships.put(key, mCloner.copy(relationship));
+        mRelationshipsByClient.add(relationship.getClientId(), key);
+        mRelationshipsByOtherClient.add(relationship.getOtherClientId(), key);
+        mAudienceIndex.update(relationship);
+    }
+
+    @Override
+    public AudienceIndex getAudienceIndex() {
+        return mAudienceIndex;
+    }
+
+    @Override
+    public TalkGroup findGroupById(String groupId) {
+        return mCloner.copy(mGroups.get(groupId));
+    }
+
+    @Override
+    public void deleteGroup(TalkGroup group) {
+        mGroups.remove(group.getGroupId());
+    }
+
+    @Override
+    public List<TalkGroup> findGroupsByClientIdChangedAfter(String clientId, Date lastKnown) {
+        List<TalkGroup> res = new ArrayList<TalkGroup>();
+        for (String groupId : mGroupMembershipIndex.getGroupsForClient(clientId)) {
+            if (!mGroupMembershipIndex.isMember(groupId, clientId) && !mGroupMembershipIndex.isInvited(groupId, clientId)) {
+                continue;
+            }
+            TalkGroup group = mGroups.get(groupId);
+            if (group == null) {
+                LOG.warn("Internal inconsistency, could not find group " + groupId + " for member client " + clientId);
+                continue;
+            }
+            if (group.getLastChanged() == null || lastKnown == null || lastKnown.getTime() == 0
+                    || group.getLastChanged().after(lastKnown)) {
+                res.add(mCloner.copy(group));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void saveGroup(TalkGroup group) {
+        mGroups.put(group.getGroupId(), mCloner.copy(group));
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersById(String groupId) {
+        List<TalkGroupMember> res = new ArrayList<TalkGroupMember>();
+        for (String clientId : mGroupMembershipIndex.getMembers(groupId)) {
+            TalkGroupMember member = mGroupMembers.get(key(groupId, clientId));
+            if (member != null) {
+                res.add(mCloner.copy(member));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdWithStates(String groupId, String[] states) {
+        List<String> stateList = Arrays.asList(states);
+        List<TalkGroupMember> res = new ArrayList<TalkGroupMember>();
+        for (TalkGroupMember member : findGroupMembersById(groupId)) {
+            if (stateList.contains(member.getState())) {
+                res.add(member);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdWithStatesAndRoles(String groupId, String[] states, String[] roles) {
+        List<String> roleList = Arrays.asList(roles);
+        List<TalkGroupMember> res = new ArrayList<TalkGroupMember>();
+        for (TalkGroupMember member : findGroupMembersByIdWithStates(groupId, states)) {
+            if (roleList.contains(member.getRole())) {
+                res.add(member);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdChangedAfter(String groupId, Date lastKnown) {
+        List<TalkGroupMember> res = new ArrayList<TalkGroupMember>();
+        for (TalkGroupMember member : findGroupMembersById(groupId)) {
+            if (member.getLastChanged() != null && member.getLastChanged().after(lastKnown)) {
+                res.add(member);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersByIdWithStatesChangedAfter(String groupId, String[] states, Date lastKnown) {
+        List<TalkGroupMember> res = new ArrayList<TalkGroupMember>();
+        for (TalkGroupMember member : findGroupMembersByIdWithStates(groupId, states)) {
+            if (member.getLastChanged() != null && member.getLastChanged().after(lastKnown)) {
+                res.add(member);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersForClient(String clientId) {
+        List<TalkGroupMember> res = new ArrayList<TalkGroupMember>();
+        for (String groupId : mGroupMembershipIndex.getGroupsForClient(clientId)) {
+            TalkGroupMember member = mGroupMembers.get(key(groupId, clientId));
+            if (member != null) {
+                res.add(mCloner.copy(member));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkGroupMember> findGroupMembersForClientWithStates(String clientId, String[] states) {
+        List<String> stateList = Arrays.asList(states);
+        List<TalkGroupMember> res = new ArrayList<TalkGroupMember>();
+        for (TalkGroupMember member : findGroupMembersForClient(clientId)) {
+            if (stateList.contains(member.getState())) {
+                res.add(member);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public TalkGroupMember findGroupMemberForClient(String groupId, String clientId) {
+        return mCloner.copy(mGroupMembers.get(key(groupId, clientId)));
+    }
+
+    @Override
+    public GroupMembershipView findGroupMembershipForClient(String groupId, String clientId) {
+        TalkGroupMember member = mGroupMembers.get(key(groupId, clientId));
+        return member == null ? null : new GroupMembershipView(member);
+    }
+
+    @Override
+    public List<GroupMembershipView> findGroupMembershipsForClient(String clientId) {
+        List<GroupMembershipView> res = new ArrayList<GroupMembershipView>();
+        for (String groupId : mGroupMembershipIndex.getGroupsForClient(clientId)) {
+            TalkGroupMember member = mGroupMembers.get(key(groupId, clientId));
+            if (member != null) {
+                res.add(new GroupMembershipView(member));
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void saveGroupMember(TalkGroupMember groupMember) {
+        mGroupMembers.put(key(groupMember.getGroupId(), groupMember.getClientId()), mCloner.copy(groupMember));
+        mGroupMembershipIndex.update(groupMember);
+    }
+
+    @Override
+    public GroupMembershipIndex getGroupMembershipIndex() {
+        return mGroupMembershipIndex;
+    }
+
+    private NearbyEnvironmentEngine getEnvironments(String type) {
+        NearbyEnvironmentEngine environments = mEnvironments.get(type);
+        if (environments == null) {
+            NearbyEnvironmentEngine newEnvironments = new NearbyEnvironmentEngine();
+            environments = mEnvironments.putIfAbsent(type, newEnvironments);
+            if (environments == null) {
+                environments = newEnvironments;
+            }
+        }
+        return environments;
+    }
+
+    @Override
+    public void saveEnvironment(TalkEnvironment environment) {
+        getEnvironments(environment.getType()).put(environment);
+    }
+
+    @Override
+    public TalkEnvironment findEnvironmentByClientId(String type, String clientId) {
+        return getEnvironments(type).findByClientId(clientId);
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsForGroup(String groupId) {
+        List<TalkEnvironment> res = new ArrayList<TalkEnvironment>();
+        for (NearbyEnvironmentEngine environments : mEnvironments.values()) {
+            res.addAll(environments.findForGroup(groupId));
+        }
+        return res;
+    }
+
+    @Override
+    public List<TalkEnvironment> findEnvironmentsMatching(TalkEnvironment environment) {
+        return getEnvironments(environment.getType()).findMatching(environment);
+    }
+
+    @Override
+    public void deleteEnvironment(TalkEnvironment environment) {
+        getEnvironments(environment.getType()).remove(environment.getClientId());
+    }
+
+    @Override
+    public int purgeExpired(Date now) {
+        int purged = 0;
+        for (TalkToken token : mTokens.values()) {
+            if (Expiry.isExpired(Expiry.of(token), now)) {
+                deleteToken(token);
+                purged++;
+            }
+        }
+        for (TalkRelationship relationship : mRelationships.values()) {
+            if (Expiry.isExpired(Expiry.of(relationship), now)) {
+                deleteRelationship(relationship);
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    @Override
+    public List<TalkEnvironment> findExpiredEnvironments(Date now) {
+        List<TalkEnvironment> res = new ArrayList<TalkEnvironment>();
+        for (NearbyEnvironmentEngine environments : mEnvironments.values()) {
+            res.addAll(environments.findExpired(now));
+        }
+        return res;
+    }
+
+    @Override
+    public boolean ping() {
+        return true;
+    }
+
+    @Override
+    public void reportPing() {
+        LOG.info("Database is online (in memory)");
+    }
+
+    @Override
+    public void shutdown() {
+        // nothing is written behind
+    }
+
+}
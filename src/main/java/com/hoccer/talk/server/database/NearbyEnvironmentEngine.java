@@ -0,0 +1,300 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.TalkEnvironment;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/**
+ * In-memory matching engine for nearby environments
+ * <p/>
+ * Nearby environments are few, small and short-lived, so they are all
+ * kept in memory and matched here instead of running a geospatial, a
+ * bssid and an identifier query against the database for each update.
+ * <p/>
+ * Locations are bucketed into a grid of fixed size cells in degrees.
+ * A search only visits the cells overlapping its radius and then checks
+ * the exact distance. BSSIDs and identifiers are kept in inverted
+ * indexes. Matches are deduplicated by client id.
+ * <p/>
+ * Environments are copied on the way in and out, so callers never share
+ * instances with the engine. Stored environments are never modified, so
+ * lookups only collect them under the lock and copy them outside of it.
+ */
+public class NearbyEnvironmentEngine {
+
+    private static final Logger LOG = Logger.getLogger(NearbyEnvironmentEngine.class);
+
+    private static final double EARTH_RADIUS = 1000.0 * 6371.0;
+
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180.0;
+
+    /**
+     * Size of grid cells in degrees latitude (about 220m)
+     */
+    private static final double CELL_SIZE = 0.002;
+
+    private static final float MIN_SEARCH_RADIUS = 100.f;
+
+    private static final float MAX_SEARCH_RADIUS = 200.f;
+
+    private final ObjectCloner mCloner = new ObjectCloner();
+
+    /**
+     * Environments by client id
+     */
+    private final Map<String, TalkEnvironment> mEnvironments = new HashMap<String, TalkEnvironment>();
+
+    private final Map<Long, Set<String>> mCells = new HashMap<Long, Set<String>>();
+
+    private final Map<String, Set<String>> mBssids = new HashMap<String, Set<String>>();
+
+    private final Map<String, Set<String>> mIdentifiers = new HashMap<String, Set<String>>();
+
+    private final Map<String, Set<String>> mGroups = new HashMap<String, Set<String>>();
+
+    public static boolean handles(String type) {
+        return TalkEnvironment.TYPE_NEARBY.equals(type);
+    }
+
+    public synchronized void load(Iterator<TalkEnvironment> environments) {
+        while (environments.hasNext()) {
+            add(environments.next());
+        }
+        LOG.info("loaded " + mEnvironments.size() + " nearby environments");
+    }
+
+    /**
+     * Add or replace the environment of its client
+     */
+    public void put(TalkEnvironment environment) {
+        TalkEnvironment copy = mCloner.copy(environment);
+        synchronized (this) {
+            remove(copy.getClientId());
+            add(copy);
+        }
+    }
+
+    /**
+     * Remove the environment of the given client
+     */
+    public synchronized void remove(String clientId) {
+        TalkEnvironment environment = mEnvironments.remove(clientId);
+        if (environment == null) {
+            return;
+        }
+        Long cell = cellOf(environment.getGeoLocation());
+        if (cell != null) {
+            unindex(mCells, cell, clientId);
+        }
+        if (environment.getBssids() != null) {
+            for (String bssid : environment.getBssids()) {
+                unindex(mBssids, bssid, clientId);
+            }
+        }
+        if (environment.getIdentifiers() != null) {
+            for (String identifier : environment.getIdentifiers()) {
+                unindex(mIdentifiers, identifier, clientId);
+            }
+        }
+        if (environment.getGroupId() != null) {
+            unindex(mGroups, environment.getGroupId(), clientId);
+        }
+    }
+
+    /**
+     * Find all environments that have not been updated in time
+     */
+    public List<TalkEnvironment> findExpired(Date now) {
+        List<TalkEnvironment> expired = new ArrayList<TalkEnvironment>();
+        synchronized (this) {
+            for (TalkEnvironment environment : mEnvironments.values()) {
+                if (Expiry.isExpired(Expiry.of(environment), now)) {
+                    expired.add(environment);
+                }
+            }
+        }
+        return copiesOf(expired);
+    }
+
+    public TalkEnvironment findByClientId(String clientId) {
+        TalkEnvironment environment;
+        synchronized (this) {
+            environment = mEnvironments.get(clientId);
+        }
+        return mCloner.copy(environment);
+    }
+
+    public List<TalkEnvironment> findForGroup(String groupId) {
+        List<TalkEnvironment> environments;
+        synchronized (this) {
+            environments = environmentsOf(mGroups.get(groupId));
+        }
+        return copiesOf(environments);
+    }
+
+    /**
+     * Find all environments near the given one, by location, bssids or identifiers
+     */
+    public List<TalkEnvironment> findMatching(TalkEnvironment environment) {
+        Set<String> matches = new LinkedHashSet<String>();
+        List<TalkEnvironment> environments;
+        synchronized (this) {
+            findMatchingIds(environment, matches);
+            environments = environmentsOf(matches);
+        }
+        LOG.debug("found " + matches.size() + " matching nearby environments");
+        return copiesOf(environments);
+    }
+
+    private void findMatchingIds(TalkEnvironment environment, Set<String> matches) {
+        Double[] searchCenter = environment.getGeoLocation();
+        if (searchCenter != null) {
+            float searchRadius = environment.getAccuracy() == null ? MIN_SEARCH_RADIUS : environment.getAccuracy();
+            searchRadius = Math.max(MIN_SEARCH_RADIUS, Math.min(MAX_SEARCH_RADIUS, searchRadius));
+            findByLocation(searchCenter, searchRadius, matches);
+        }
+        if (environment.getBssids() != null) {
+            for (String bssid : environment.getBssids()) {
+                addAll(mBssids.get(bssid), matches);
+            }
+        }
+        if (environment.getIdentifiers() != null) {
+            for (String identifier : environment.getIdentifiers()) {
+                addAll(mIdentifiers.get(identifier), matches);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mEnvironments.size();
+    }
+
+    private void findByLocation(Double[] center, float radius, Set<String> matches) {
+        double longitude = center[0];
+        double latitude = center[1];
+        double latitudeRadius = radius / METERS_PER_DEGREE;
+        double longitudeRadius = latitudeRadius / Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+
+        long minLatitudeCell = cellIndex(latitude - latitudeRadius);
+        long maxLatitudeCell = cellIndex(latitude + latitudeRadius);
+        long minLongitudeCell = cellIndex(longitude - longitudeRadius);
+        long maxLongitudeCell = cellIndex(longitude + longitudeRadius);
+        for (long latitudeCell = minLatitudeCell; latitudeCell <= maxLatitudeCell; latitudeCell++) {
+            for (long longitudeCell = minLongitudeCell; longitudeCell <= maxLongitudeCell; longitudeCell++) {
+                Set<String> clientIds = mCells.get(cellKey(latitudeCell, longitudeCell));
+                if (clientIds == null) {
+                    continue;
+                }
+                for (String clientId : clientIds) {
+                    Double[] location = mEnvironments.get(clientId).getGeoLocation();
+                    if (distance(latitude, longitude, location[1], location[0]) <= radius) {
+                        matches.add(clientId);
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(TalkEnvironment environment) {
+        String clientId = environment.getClientId();
+        mEnvironments.put(clientId, environment);
+        Long cell = cellOf(environment.getGeoLocation());
+        if (cell != null) {
+            index(mCells, cell, clientId);
+        }
+        if (environment.getBssids() != null) {
+            for (String bssid : environment.getBssids()) {
+                index(mBssids, bssid, clientId);
+            }
+        }
+        if (environment.getIdentifiers() != null) {
+            for (String identifier : environment.getIdentifiers()) {
+                index(mIdentifiers, identifier, clientId);
+            }
+        }
+        if (environment.getGroupId() != null) {
+            index(mGroups, environment.getGroupId(), clientId);
+        }
+    }
+
+    /**
+     * Stored environments of the given clients, to be called with the lock held
+     */
+    private List<TalkEnvironment> environmentsOf(Collection<String> clientIds) {
+        List<TalkEnvironment> res = new ArrayList<TalkEnvironment>();
+        if (clientIds != null) {
+            for (String clientId : clientIds) {
+                res.add(mEnvironments.get(clientId));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Copies of stored environments, to be called without the lock
+     */
+    private List<TalkEnvironment> copiesOf(List<TalkEnvironment> environments) {
+        List<TalkEnvironment> res = new ArrayList<TalkEnvironment>(environments.size());
+        for (TalkEnvironment environment : environments) {
+            res.add(mCloner.copy(environment));
+        }
+        return res;
+    }
+
+    private static <K> void index(Map<K, Set<String>> index, K key, String clientId) {
+        Set<String> clientIds = index.get(key);
+        if (clientIds == null) {
+            clientIds = new HashSet<String>();
+            index.put(key, clientIds);
+        }
+        clientIds.add(clientId);
+    }
+
+    private static <K> void unindex(Map<K, Set<String>> index, K key, String clientId) {
+        Set<String> clientIds = index.get(key);
+        if (clientIds != null) {
+            clientIds.remove(clientId);
+            if (clientIds.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static void addAll(Set<String> clientIds, Set<String> matches) {
+        if (clientIds != null) {
+            matches.addAll(clientIds);
+        }
+    }
+
+    /**
+     * @param location longitude and latitude as stored in environments
+     */
+    private static Long cellOf(Double[] location) {
+        if (location == null || location.length < 2 || location[0] == null || location[1] == null) {
+            return null;
+        }
+        return cellKey(cellIndex(location[1]), cellIndex(location[0]));
+    }
+
+    private static long cellIndex(double degrees) {
+        return (long) Math.floor(degrees / CELL_SIZE);
+    }
+
+    private static long cellKey(long latitudeCell, long longitudeCell) {
+        return (latitudeCell << 32) ^ (longitudeCell & 0xffffffffL);
+    }
+
+    /**
+     * Great circle distance in meters
+     */
+    private static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.hoccer.talk.server.database;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Deep copies of model objects
+ * <p/>
+ * Objects are copied field by field through Jackson with annotations
+ * disabled, so fields hidden from the wire format (like database ids)
+ * are copied as well. Used by in-memory stores that must not share
+ * instances with their callers.
+ */
+public class ObjectCloner {
+
+    private final ObjectMapper mMapper;
+
+    public ObjectCloner() {
+        mMapper = new ObjectMapper();
+        mMapper.configure(MapperFeature.USE_ANNOTATIONS, false);
+        mMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        mMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+        mMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T copy(T object) {
+        if (object == null) {
+            return null;
+        }
+        return (T) mMapper.convertValue(object, object.getClass());
+    }
+
+}
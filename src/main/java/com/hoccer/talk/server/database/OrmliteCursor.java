@@ -0,0 +1,36 @@
+package com.hoccer.talk.server.database;
+
+import com.j256.ormlite.dao.CloseableIterator;
+
+/**
+ * Database cursor over the results of an OrmLite query
+ */
+class OrmliteCursor<T> implements DatabaseCursor<T> {
+
+    private final CloseableIterator<T> mIterator;
+
+    OrmliteCursor(CloseableIterator<T> iterator) {
+        mIterator = iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mIterator.hasNext();
+    }
+
+    @Override
+    public T next() {
+        return mIterator.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        mIterator.closeQuietly();
+    }
+
+}
@@ -2,25 +2,45 @@ package com.hoccer.talk.server.database;
 
 import com.hoccer.talk.model.*;
 import com.hoccer.talk.server.ITalkServerDatabase;
+import com.hoccer.talk.server.TalkServerConfiguration;
+import com.j256.ormlite.dao.BaseDaoImpl;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
-import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.stmt.UpdateBuilder;
+import com.j256.ormlite.stmt.Where;
 import com.j256.ormlite.table.TableUtils;
 import org.apache.log4j.Logger;
 
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Ormlite-based database backend
  * <p/>
- * XXX WARNING broken and incomplete, use as inspiration only...
+ * Intended for PostgreSQL-class databases, configured through the
+ * talk.ormlite.* properties. Connections are pooled and the values
+ * of hot queries are bound as arguments of prepared statements.
+ * Tables and the composite indexes needed by the queries below are
+ * created on startup if they do not exist.
+ * <p/>
+ * Environments are matched in memory and written through to their own
+ * table, from which they are loaded on startup.
  */
 public class OrmliteDatabase implements ITalkServerDatabase {
 
     private static final Logger LOG = Logger.getLogger(OrmliteDatabase.class);
 
-    JdbcConnectionSource mConnectionSource;
+    private static final long MAX_CONNECTION_AGE = 60 * 60 * 1000; // in milliseconds
+    private static final long CONNECTION_CHECK_INTERVAL = 60 * 1000; // in milliseconds
+
+    JdbcPooledConnectionSource mConnectionSource;
 
     /* OWN SIMPLE IDENTITY */
     Dao<TalkClient, String> mClients;
@@ -35,22 +55,42 @@ public class OrmliteDatabase implements ITalkServerDatabase {
     Dao<TalkKey, Long> mKeys;
     Dao<TalkGroupMember, Long> mGroupMembers;
 
-    public OrmliteDatabase() {
+    /* ENVIRONMENTS AS JSON */
+    Dao<OrmliteEnvironment, String> mEnvironmentRows;
+
+    GroupMembershipIndex mGroupMembershipIndex = new GroupMembershipIndex();
+
+    AudienceIndex mAudienceIndex = new AudienceIndex(mGroupMembershipIndex);
+
+    /**
+     * Environments of each type
+     */
+    final ConcurrentMap<String, NearbyEnvironmentEngine> mEnvironments =
+            new ConcurrentHashMap<String, NearbyEnvironmentEngine>();
+
+    public OrmliteDatabase(TalkServerConfiguration configuration) {
+        LOG.info("Initializing ormlite with database " + configuration.getOrmliteUrl());
         try {
-            mConnectionSource = new JdbcConnectionSource("jdbc:postgresql://localhost/talk", "talk", "talk");
+            mConnectionSource = new JdbcPooledConnectionSource(configuration.getOrmliteUrl(),
+                    configuration.getOrmliteUser(), configuration.getOrmlitePassword());
+            mConnectionSource.setMaxConnectionsFree(configuration.getOrmliteMaxConnectionsFree());
+            mConnectionSource.setMaxConnectionAgeMillis(MAX_CONNECTION_AGE);
+            mConnectionSource.setCheckConnectionsEveryMillis(CONNECTION_CHECK_INTERVAL);
+            mConnectionSource.setTestBeforeGet(true);
         } catch (SQLException e) {
             e.printStackTrace();
         }
         try {
-            TableUtils.createTable(mConnectionSource, TalkClient.class);
-            TableUtils.createTable(mConnectionSource, TalkMessage.class);
-            TableUtils.createTable(mConnectionSource, TalkPresence.class);
-            TableUtils.createTable(mConnectionSource, TalkGroup.class);
-            TableUtils.createTable(mConnectionSource, TalkDelivery.class);
-            TableUtils.createTable(mConnectionSource, TalkToken.class);
-            TableUtils.createTable(mConnectionSource, TalkRelationship.class);
-            TableUtils.createTable(mConnectionSource, TalkKey.class);
-            TableUtils.createTable(mConnectionSource, TalkGroupMember.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkClient.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkMessage.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkPresence.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkGroup.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkDelivery.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkToken.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkRelationship.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkKey.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, TalkGroupMember.class);
+            TableUtils.createTableIfNotExists(mConnectionSource, OrmliteEnvironment.class);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -64,14 +104,99 @@ public class OrmliteDatabase implements ITalkServerDatabase {
             mRelationships = DaoManager.createDao(mConnectionSource, TalkRelationship.class);
             mKeys = DaoManager.createDao(mConnectionSource, TalkKey.class);
             mGroupMembers = DaoManager.createDao(mConnectionSource, TalkGroupMember.class);
+            mEnvironmentRows = DaoManager.createDao(mConnectionSource, OrmliteEnvironment.class);
+            createIndexes();
+            mGroupMembershipIndex.load(toMembershipViews(mGroupMembers.queryBuilder()
+                    .selectColumns(GroupMembershipView.COLUMNS)
+                    .query()).iterator());
+            mAudienceIndex.load(mRelationships.queryForEq("state", TalkRelationship.STATE_FRIEND).iterator());
+            loadEnvironments();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Log a failed query and wrap it for rethrowing, callers use results right away
+     */
+    private static RuntimeException failure(String method, Exception e) {
+        LOG.error(method + " failed", e);
+        return new RuntimeException(method + " failed", e);
+    }
+
+    private void createIndexes() {
+        createIndex(mClients, "client_apnstoken", "apnsToken");
+        // saveDeliveries() creates rows, so a delivery must not exist twice
+        createUniqueIndex(mDeliveries, "delivery_message_receiver", "messageId", "receiverId");
+        createIndex(mDeliveries, "delivery_receiver_state", "receiverId", "state");
+        createIndex(mDeliveries, "delivery_sender_state", "senderId", "state");
+        createIndex(mDeliveries, "delivery_state", "state");
+        createIndex(mTokens, "token_client_secret", "clientId", "secret");
+        createIndex(mTokens, "token_purpose_secret", "purpose", "secret");
+        createIndex(mTokens, "token_expiry", "expiryTime");
+        createIndex(mRelationships, "relationship_client_other", "clientId", "otherClientId");
+        createIndex(mRelationships, "relationship_client_state", "clientId", "state");
+        createIndex(mRelationships, "relationship_client_changed", "clientId", "lastChanged");
+        createIndex(mRelationships, "relationship_other", "otherClientId");
+        createIndex(mRelationships, "relationship_state_changed", "state", "lastChanged");
+        createIndex(mPresence, "presence_client_timestamp", "clientId", "timestamp");
+        createIndex(mKeys, "key_client_key", "clientId", "keyId");
+        createIndex(mKeys, "key_timestamp", "timestamp");
+        createIndex(mGroupMembers, "groupmember_group_client", "groupId", "clientId");
+        createIndex(mGroupMembers, "groupmember_client", "clientId");
+    }
+
+    private void createIndex(Dao<?, ?> dao, String name, String... columns) {
+        createIndex(dao, false, name, columns);
+    }
+
+    private void createUniqueIndex(Dao<?, ?> dao, String name, String... columns) {
+        createIndex(dao, true, name, columns);
+    }
+
+    private void createIndex(Dao<?, ?> dao, boolean unique, String name, String... columns) {
+        DatabaseType databaseType = mConnectionSource.getDatabaseType();
+        StringBuilder sql = new StringBuilder(unique ? "CREATE UNIQUE INDEX IF NOT EXISTS " : "CREATE INDEX IF NOT EXISTS ");
+        databaseType.appendEscapedEntityName(sql, name);
+        sql.append(" ON ");
+        databaseType.appendEscapedEntityName(sql, ((BaseDaoImpl<?, ?>) dao).getTableInfo().getTableName());
+        sql.append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            databaseType.appendEscapedEntityName(sql, columns[i]);
+        }
+        sql.append(")");
+        try {
+            dao.executeRaw(sql.toString());
+        } catch (SQLException e) {
+            LOG.error("could not create index " + name, e);
+        }
+    }
+
     @Override
     public Map<String, Long> getStatistics() {
-        return null;
+        HashMap<String, Long> res = new HashMap<String, Long>();
+        try {
+            res.put("client", mClients.countOf());
+            res.put("message", mMessages.countOf());
+            res.put("delivery", mDeliveries.countOf());
+            res.put("token", mTokens.countOf());
+            res.put("relationship", mRelationships.countOf());
+            res.put("presence", mPresence.countOf());
+            res.put("key", mKeys.countOf());
+            res.put("group", mGroups.countOf());
+            res.put("groupMember", mGroupMembers.countOf());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        long environments = 0;
+        for (NearbyEnvironmentEngine engine : mEnvironments.values()) {
+            environments += engine.size();
+        }
+        res.put("environment", environments);
+        return res;
     }
 
     @Override
@@ -84,6 +209,11 @@ public class OrmliteDatabase implements ITalkServerDatabase {
         }
     }
 
+    @Override
+    public DatabaseCursor<TalkClient> iterateAllClients() {
+        return new OrmliteCursor<TalkClient>(mClients.iterator());
+    }
+
     @Override
     public TalkClient findClientById(String clientId) {
         try {
@@ -94,6 +224,26 @@ public class OrmliteDatabase implements ITalkServerDatabase {
         }
     }
 
+    @Override
+    public Set<String> existingClientIds(Collection<String> clientIds) {
+        Set<String> res = new HashSet<String>();
+        if (clientIds.isEmpty()) {
+            return res;
+        }
+        try {
+            List<TalkClient> clients = mClients.queryBuilder()
+                    .selectColumns("clientId")
+                    .where().in("clientId", clientIds)
+                    .query();
+            for (TalkClient client : clients) {
+                res.add(client.getClientId());
+            }
+        } catch (SQLException e) {
+            throw failure("existingClientIds", e);
+        }
+        return res;
+    }
+
     @Override
     public TalkClient findClientByApnsToken(String apnsToken) {
         try {
@@ -125,6 +275,17 @@ public class OrmliteDatabase implements ITalkServerDatabase {
         }
     }
 
+    @Override
+    public List<TalkMessage> findMessagesByIds(Collection<String> messageIds) {
+        try {
+            return mMessages.queryBuilder().where()
+                    .in("messageId", messageIds)
+                    .query();
+        } catch (SQLException e) {
+            throw failure("findMessagesByIds", e);
+        }
+    }
+
     @Override
     public void deleteMessage(TalkMessage message) {
         try {
@@ -147,13 +308,12 @@ public class OrmliteDatabase implements ITalkServerDatabase {
     public TalkDelivery findDelivery(String messageId, String clientId) {
         try {
             return mDeliveries.queryBuilder().where()
-                    .eq("messageId", messageId)
+                    .eq("messageId", new SelectArg(messageId))
                     .and()
-                    .eq("clientId", clientId)
+                    .eq("receiverId", new SelectArg(clientId))
                     .queryForFirst();
         } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            throw failure("findDelivery", e);
         }
     }
 
@@ -181,6 +341,17 @@ public class OrmliteDatabase implements ITalkServerDatabase {
         }
     }
 
+    @Override
+    public DatabaseCursor<TalkDelivery> iterateDeliveriesInState(String state) {
+        try {
+            return new OrmliteCursor<TalkDelivery>(mDeliveries.queryBuilder().where()
+                    .eq("state", state)
+                    .iterator());
+        } catch (SQLException e) {
+            throw failure("iterateDeliveriesInState", e);
+        }
+    }
+
     @Override
     public List<TalkDelivery> findDeliveriesForClient(String clientId) {
         try {
@@ -209,13 +380,12 @@ public class OrmliteDatabase implements ITalkServerDatabase {
     public List<TalkDelivery> findDeliveriesForClientInState(String clientId, String state) {
         try {
             return mDeliveries.queryBuilder().where()
-                    .eq("receiverId", clientId)
+                    .eq("receiverId", new SelectArg(clientId))
                     .and()
-                    .eq("state", state)
+                    .eq("state", new SelectArg(state))
                     .query();
         } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            throw failure("findDeliveriesForClientInState", e);
         }
     }
 
@@ -223,20 +393,24 @@ public class OrmliteDatabase implements ITalkServerDatabase {
     public List<TalkDelivery> findDeliveriesFromClientInState(String clientId, String state) {
         try {
             return mDeliveries.queryBuilder().where()
-                    .eq("senderId", clientId)
+                    .eq("senderId", new SelectArg(clientId))
                     .and()
-                    .eq("state", state)
+                    .eq("state", new SelectArg(state))
                     .query();
         } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            throw failure("findDeliveriesFromClientInState", e);
         }
     }
 
     @Override
     public void deleteDelivery(TalkDelivery delivery) {
         try {
-            mDeliveries.delete(delivery);
+            DeleteBuilder<TalkDelivery, Long> delete = mDeliveries.deleteBuilder();
+            delete.where()
+                    .eq("messageId", new SelectArg(delivery.getMessageId()))
+                    .and()
+                    .eq("receiverId", new SelectArg(delivery.getReceiverId()));
+            delete.delete();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -251,6 +425,66 @@ public class OrmliteDatabase implements ITalkServerDatabase {
         }
     }
 
+    @Override
+    public void saveDeliveries(final List<TalkDelivery> deliveries) {
+        try {
+            mDeliveries.callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (TalkDelivery delivery : deliveries) {
+                        mDeliveries.create(delivery);
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            throw failure("saveDeliveries", e);
+        }
+    }
+
+    @Override
+    public boolean updateDeliveryState(String messageId, String receiverId,
+                                       String expectedState, String newState, Date timeChanged) {
+        try {
+            UpdateBuilder<TalkDelivery, Long> update = mDeliveries.updateBuilder();
+            update.updateColumnValue("state", new SelectArg(newState));
+            update.updateColumnValue("timeChanged", new SelectArg(timeChanged));
+            update.where()
+                    .eq("messageId", new SelectArg(messageId))
+                    .and()
+                    .eq("receiverId", new SelectArg(receiverId))
+                    .and()
+                    .eq("state", new SelectArg(expectedState));
+            return update.update() > 0;
+        } catch (SQLException e) {
+            throw failure("updateDeliveryState", e);
+        }
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedIn(String messageId, String receiverId, Date timeUpdatedIn) {
+        updateDeliveryColumn(messageId, receiverId, "timeUpdatedIn", timeUpdatedIn);
+    }
+
+    @Override
+    public void updateDeliveryTimeUpdatedOut(String messageId, String receiverId, Date timeUpdatedOut) {
+        updateDeliveryColumn(messageId, receiverId, "timeUpdatedOut", timeUpdatedOut);
+    }
+
+    private void updateDeliveryColumn(String messageId, String receiverId, String column, Object value) {
+        try {
+            UpdateBuilder<TalkDelivery, Long> update = mDeliveries.updateBuilder();
+            update.updateColumnValue(column, new SelectArg(value));
+            update.where()
+                    .eq("messageId", new SelectArg(messageId))
+                    .and()
+                    .eq("receiverId", new SelectArg(receiverId));
+            update.update();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public List<TalkToken> findTokensByClient(String clientId) {
         try {
@@ -280,7 +514,12 @@ public class OrmliteDatabase implements ITalkServerDatabase {
     @Override
     public void deleteToken(TalkToken token) {
         try {
-            mTokens.delete(token);
+            DeleteBuilder<TalkToken, Long> delete = mTokens.deleteBuilder();
+            delete.where()
+                    .eq("clientId", new SelectArg(token.getClientId()))
+                    .and()
+                    .eq("secret", new SelectArg(token.getSecret()));
+            delete.delete();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -316,48 +555,32 @@ public class OrmliteDatabase implements ITalkServerDatabase {
 
     @Override
     public List<TalkPresence> findPresencesChangedAfter(String clientId, Date lastKnown) {
+        Set<String> clients = mAudienceIndex.getAudience(clientId);
+        if (clients.isEmpty()) {
+            return new ArrayList<TalkPresence>();
+        }
         try {
-            List<TalkPresence> result = new ArrayList<TalkPresence>();
-
-            Set<String> clientsToQuery = new HashSet<String>();
-
-            List<TalkRelationship> relationships =
-                    mRelationships.queryBuilder().where()
-                            .eq("otherClientId", clientId)
-                            .and()
-                            .eq("state", TalkRelationship.STATE_FRIEND)
-                            .query();
-            for (TalkRelationship relationship : relationships) {
-                clientsToQuery.add(relationship.getClientId());
-            }
-
-            List<TalkGroupMember> ownMembers =
-                    mGroupMembers.queryBuilder().where()
-                            .eq("clientId", clientId)
-                            .eq("state", TalkGroupMember.STATE_JOINED)
-                            .eq("state", TalkGroupMember.STATE_INVITED)
-                            .or(2)
-                            .and(2)
-                            .query();
-            for (TalkGroupMember ownMember : ownMembers) {
-                List<TalkGroupMember> otherMembers = findGroupMembersById(ownMember.getGroupId());
-                for (TalkGroupMember otherMember : otherMembers) {
-                    clientsToQuery.add(otherMember.getClientId());
-                }
-            }
-
-            clientsToQuery.remove(clientId);
+            return mPresence.queryBuilder().where()
+                    .in("clientId", clients)
+                    .and()
+                    .gt("timestamp", lastKnown)
+                    .query();
+        } catch (SQLException e) {
+            throw failure("findPresencesChangedAfter", e);
+        }
+    }
 
-            for (String otherClient : clientsToQuery) {
-                TalkPresence presence = findPresenceForClient(otherClient);
-                if (presence != null) {
-                    result.add(presence);
-                }
-            }
-            return result;
+    @Override
+    public List<TalkPresence> findPresencesForClients(Collection<String> clientIds) {
+        if (clientIds.isEmpty()) {
+            return new ArrayList<TalkPresence>();
+        }
+        try {
+            return mPresence.queryBuilder().where()
+                    .in("clientId", clientIds)
+                    .query();
         } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            throw failure("findPresencesForClients", e);
         }
     }
 
@@ -385,10 +608,26 @@ public class OrmliteDatabase implements ITalkServerDatabase {
         }
     }
 
+    @Override
+    public DatabaseCursor<TalkKey> iterateKeysOlderThan(Date timestamp) {
+        try {
+            return new OrmliteCursor<TalkKey>(mKeys.queryBuilder().where()
+                    .lt("timestamp", timestamp)
+                    .iterator());
+        } catch (SQLException e) {
+            throw failure("iterateKeysOlderThan", e);
+        }
+    }
+
     @Override
     public void deleteKey(TalkKey key) {
         try {
-            mKeys.delete(key);
+            DeleteBuilder<TalkKey, Long> delete = mKeys.deleteBuilder();
+            delete.where()
+                    .eq("clientId", new SelectArg(key.getClientId()))
+                    .and()
+                    .eq("keyId", new SelectArg(key.getKeyId()));
+            delete.delete();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -472,7 +711,13 @@ public class OrmliteDatabase implements ITalkServerDatabase {
     @Override
     public void deleteRelationship(TalkRelationship relationship) {
         try {
-            mRelationships.delete(relationship);
+            DeleteBuilder<TalkRelationship, Long> delete = mRelationships.deleteBuilder();
+            delete.where()
+                    .eq("clientId", new SelectArg(relationship.getClientId()))
+                    .and()
+                    .eq("otherClientId", new SelectArg(relationship.getOtherClientId()));
+            delete.delete();
+            mAudienceIndex.remove(relationship);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -482,11 +727,17 @@ public class OrmliteDatabase implements ITalkServerDatabase {
     public void saveRelationship(TalkRelationship relationship) {
         try {
             mRelationships.createOrUpdate(relationship);
+            mAudienceIndex.update(relationship);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public AudienceIndex getAudienceIndex() {
+        return mAudienceIndex;
+    }
+
     @Override
     public TalkGroup findGroupById(String groupId) {
         try {
@@ -508,12 +759,27 @@ public class OrmliteDatabase implements ITalkServerDatabase {
 
     @Override
     public List<TalkGroup> findGroupsByClientIdChangedAfter(String clientId, Date lastKnown) {
-        List<TalkGroup> result = new ArrayList<TalkGroup>();
-        List<TalkGroupMember> memberships = findGroupMembersForClient(clientId);
+        List<String> groupIds = new ArrayList<String>();
+        List<TalkGroupMember> memberships = findGroupMembersForClientWithStates(clientId,
+                new String[]{TalkGroupMember.STATE_JOINED, TalkGroupMember.STATE_INVITED});
+        if (memberships == null || memberships.isEmpty()) {
+            return new ArrayList<TalkGroup>();
+        }
         for (TalkGroupMember membership : memberships) {
-            result.add(findGroupById(membership.getGroupId()));
+            groupIds.add(membership.getGroupId());
+        }
+        try {
+            Where<TalkGroup, String> where = mGroups.queryBuilder().where();
+            if (lastKnown == null || lastKnown.getTime() == 0) {
+                where.in("groupId", groupIds);
+            } else {
+                where.and(where.in("groupId", groupIds),
+                        where.or(where.gt("lastChanged", lastKnown), where.isNull("lastChanged")));
+            }
+            return where.query();
+        } catch (SQLException e) {
+            throw failure("findGroupsByClientIdChangedAfter", e);
         }
-        return result;
     }
 
     @Override
@@ -551,12 +817,30 @@ public class OrmliteDatabase implements ITalkServerDatabase {
 
     @Override
     public List<TalkGroupMember> findGroupMembersByIdWithStates(String groupId, String[] states) {
-        return null;
+        try {
+            return mGroupMembers.queryBuilder().where()
+                    .eq("groupId", new SelectArg(groupId))
+                    .and()
+                    .in("state", (Object[]) states)
+                    .query();
+        } catch (SQLException e) {
+            throw failure("findGroupMembersByIdWithStates", e);
+        }
     }
 
     @Override
     public List<TalkGroupMember> findGroupMembersByIdWithStatesAndRoles(String groupId, String[] states, String [] roles) {
-        return null;
+        try {
+            return mGroupMembers.queryBuilder().where()
+                    .eq("groupId", new SelectArg(groupId))
+                    .and()
+                    .in("state", (Object[]) states)
+                    .and()
+                    .in("role", (Object[]) roles)
+                    .query();
+        } catch (SQLException e) {
+            throw failure("findGroupMembersByIdWithStatesAndRoles", e);
+        }
     }
 
     @Override
@@ -575,68 +859,216 @@ public class OrmliteDatabase implements ITalkServerDatabase {
 
     @Override
     public List<TalkGroupMember> findGroupMembersByIdWithStatesChangedAfter(String groupId, String[] states, Date lastKnown) {
-        return null;
+        try {
+            return mGroupMembers.queryBuilder().where()
+                    .eq("groupId", new SelectArg(groupId))
+                    .and()
+                    .in("state", (Object[]) states)
+                    .and()
+                    .gt("lastChanged", new SelectArg(lastKnown))
+                    .query();
+        } catch (SQLException e) {
+            throw failure("findGroupMembersByIdWithStatesChangedAfter", e);
+        }
     }
 
     @Override
     public TalkGroupMember findGroupMemberForClient(String groupId, String clientId) {
         try {
             return mGroupMembers.queryBuilder().where()
-                    .eq("groupId", groupId)
+                    .eq("groupId", new SelectArg(groupId))
                     .and()
-                    .eq("clientId", clientId)
+                    .eq("clientId", new SelectArg(clientId))
                     .queryForFirst();
         } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            throw failure("findGroupMemberForClient", e);
+        }
+    }
+
+    @Override
+    public GroupMembershipView findGroupMembershipForClient(String groupId, String clientId) {
+        try {
+            TalkGroupMember member = mGroupMembers.queryBuilder()
+                    .selectColumns(GroupMembershipView.COLUMNS)
+                    .where()
+                    .eq("groupId", new SelectArg(groupId))
+                    .and()
+                    .eq("clientId", new SelectArg(clientId))
+                    .queryForFirst();
+            return member == null ? null : new GroupMembershipView(member);
+        } catch (SQLException e) {
+            throw failure("findGroupMembershipForClient", e);
         }
     }
 
+    @Override
+    public List<GroupMembershipView> findGroupMembershipsForClient(String clientId) {
+        try {
+            return toMembershipViews(mGroupMembers.queryBuilder()
+                    .selectColumns(GroupMembershipView.COLUMNS)
+                    .where()
+                    .eq("clientId", clientId)
+                    .query());
+        } catch (SQLException e) {
+            throw failure("findGroupMembershipsForClient", e);
+        }
+    }
+
+    private static List<GroupMembershipView> toMembershipViews(List<TalkGroupMember> members) {
+        List<GroupMembershipView> views = new ArrayList<GroupMembershipView>(members.size());
+        for (TalkGroupMember member : members) {
+            views.add(new GroupMembershipView(member));
+        }
+        return views;
+    }
+
     @Override
     public void saveGroupMember(TalkGroupMember groupMember) {
         try {
             mGroupMembers.createOrUpdate(groupMember);
+            mGroupMembershipIndex.update(groupMember);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public GroupMembershipIndex getGroupMembershipIndex() {
+        return mGroupMembershipIndex;
+    }
+
+    private void loadEnvironments() {
+        int loaded = 0;
+        DatabaseCursor<OrmliteEnvironment> rows = new OrmliteCursor<OrmliteEnvironment>(mEnvironmentRows.iterator());
+        try {
+            while (rows.hasNext()) {
+                OrmliteEnvironment row = rows.next();
+                getEnvironments(row.getType()).put(row.toEnvironment());
+                loaded++;
+            }
+        } finally {
+            rows.close();
+        }
+        LOG.info("loaded " + loaded + " environments");
+    }
+
+    private NearbyEnvironmentEngine getEnvironments(String type) {
+        NearbyEnvironmentEngine environments = mEnvironments.get(type);
+        if (environments == null) {
+            NearbyEnvironmentEngine newEnvironments = new NearbyEnvironmentEngine();
+            environments = mEnvironments.putIfAbsent(type, newEnvironments);
+            if (environments == null) {
+                environments = newEnvironments;
+            }
+        }
+        return environments;
+    }
+
     @Override
     public void saveEnvironment(TalkEnvironment environment) {
+        getEnvironments(environment.getType()).put(environment);
+        try {
+            mEnvironmentRows.createOrUpdate(new OrmliteEnvironment(environment));
+        } catch (SQLException e) {
+            throw failure("saveEnvironment", e);
+        }
     }
 
     @Override
     public TalkEnvironment findEnvironmentByClientId(String type, String clientId) {
-        return null;
+        return getEnvironments(type).findByClientId(clientId);
     }
 
     @Override
     public List<TalkEnvironment> findEnvironmentsForGroup(String groupId) {
-        return null;
+        List<TalkEnvironment> res = new ArrayList<TalkEnvironment>();
+        for (NearbyEnvironmentEngine environments : mEnvironments.values()) {
+            res.addAll(environments.findForGroup(groupId));
+        }
+        return res;
     }
 
     @Override
     public List<TalkEnvironment> findEnvironmentsMatching(TalkEnvironment environment) {
-        return null;
+        return getEnvironments(environment.getType()).findMatching(environment);
     }
 
     @Override
     public void deleteEnvironment(TalkEnvironment environment) {
+        getEnvironments(environment.getType()).remove(environment.getClientId());
+        try {
+            mEnvironmentRows.deleteById(OrmliteEnvironment.keyOf(environment.getType(), environment.getClientId()));
+        } catch (SQLException e) {
+            throw failure("deleteEnvironment", e);
+        }
     }
 
     @Override
     public List<TalkGroupMember> findGroupMembersForClientWithStates(String clientId, String[] states) {
-        return null;
+        try {
+            return mGroupMembers.queryBuilder().where()
+                    .eq("clientId", clientId)
+                    .and()
+                    .in("state", (Object[]) states)
+                    .query();
+        } catch (SQLException e) {
+            throw failure("findGroupMembersForClientWithStates", e);
+        }
+    }
+
+    @Override
+    public int purgeExpired(Date now) {
+        int purged = 0;
+        try {
+            DeleteBuilder<TalkToken, Long> tokens = mTokens.deleteBuilder();
+            Where<TalkToken, Long> expiredTokens = tokens.where();
+            expiredTokens.or(
+                    expiredTokens.eq("state", TalkToken.STATE_SPENT),
+                    expiredTokens.lt("expiryTime", now));
+            purged += tokens.delete();
+
+            DeleteBuilder<TalkRelationship, Long> relationships = mRelationships.deleteBuilder();
+            relationships.where()
+                    .eq("state", TalkRelationship.STATE_NONE)
+                    .and()
+                    .lt("lastChanged", Expiry.relationshipsChangedBefore(now));
+            purged += relationships.delete();
+        } catch (SQLException e) {
+            LOG.error("purgeExpired failed", e);
+        }
+        return purged;
+    }
+
+    @Override
+    public List<TalkEnvironment> findExpiredEnvironments(Date now) {
+        List<TalkEnvironment> res = new ArrayList<TalkEnvironment>();
+        for (NearbyEnvironmentEngine environments : mEnvironments.values()) {
+            res.addAll(environments.findExpired(now));
+        }
+        return res;
     }
 
     @Override
     public boolean ping() {
-        // TODO: implement me properly!
-        return false;
+        try {
+            return mClients.queryRawValue("SELECT 1") == 1;
+        } catch (SQLException e) {
+            LOG.error("ping failed", e);
+            return false;
+        }
     }
 
     @Override
     public void reportPing() {
-        LOG.info(ping());
+        if (ping()) {
+            LOG.info("Database is online");
+        } else {
+            LOG.error("Database is not online");
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // nothing is written behind
     }
 }
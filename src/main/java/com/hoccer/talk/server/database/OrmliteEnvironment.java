@@ -0,0 +1,81 @@
+package com.hoccer.talk.server.database;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hoccer.talk.model.TalkEnvironment;
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import java.io.IOException;
+
+/**
+ * Row of the environment table of the ormlite backend
+ * <p/>
+ * Environments hold arrays that do not map to columns, so the whole
+ * environment is stored as JSON next to its type and client. Matching
+ * is done in memory, the table keeps environments across restarts.
+ */
+@DatabaseTable(tableName = "environment")
+class OrmliteEnvironment {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static {
+        // same field mapping as ObjectCloner
+        MAPPER.configure(MapperFeature.USE_ANNOTATIONS, false);
+        MAPPER.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        MAPPER.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+        MAPPER.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+    }
+
+    @DatabaseField(id = true, columnName = "key")
+    private String mKey;
+
+    @DatabaseField(columnName = "type")
+    private String mType;
+
+    @DatabaseField(columnName = "clientId")
+    private String mClientId;
+
+    @DatabaseField(columnName = "data", dataType = DataType.LONG_STRING)
+    private String mData;
+
+    OrmliteEnvironment() {
+        // for ormlite
+    }
+
+    OrmliteEnvironment(TalkEnvironment environment) {
+        mKey = keyOf(environment.getType(), environment.getClientId());
+        mType = environment.getType();
+        mClientId = environment.getClientId();
+        try {
+            mData = MAPPER.writeValueAsString(environment);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not serialize environment of client " + mClientId, e);
+        }
+    }
+
+    /**
+     * Environments are unique per type and client
+     */
+    static String keyOf(String type, String clientId) {
+        return type + ":" + clientId;
+    }
+
+    String getType() {
+        return mType;
+    }
+
+    TalkEnvironment toEnvironment() {
+        try {
+            return MAPPER.readValue(mData, TalkEnvironment.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not deserialize environment of client " + mClientId, e);
+        }
+    }
+
+}
@@ -1,44 +1,198 @@
 package com.hoccer.talk.server.delivery;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.hoccer.talk.model.TalkDelivery;
 import com.hoccer.talk.server.TalkServer;
 import com.hoccer.talk.server.TalkServerConfiguration;
 import com.hoccer.talk.server.agents.NotificationDeferrer;
+import com.hoccer.talk.server.database.DatabaseCursor;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Agent for message delivery
+ * <p/>
+ * Delivery requests are coalesced per client: at most one delivery run
+ * is queued and at most one is running for any given client. Requests
+ * arriving while a run is in progress mark the client as dirty, which
+ * causes exactly one follow-up run once the current one has finished.
+ * <p/>
+ * Runs are keyed by client id, so with multiple delivery lanes all runs
+ * for one recipient stay on the same lane and keep their order.
+ */
 public class DeliveryAgent extends NotificationDeferrer {
 
     private static final ThreadLocal<ArrayList<Runnable>> context = new ThreadLocal<ArrayList<Runnable>>();
 
+    private static final long TIMER_TICK_DURATION = 100; // in milliseconds
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    /**
+     * States of outstanding delivery runs
+     */
+    private enum RunState {
+        /** a run has been queued but has not started yet */
+        QUEUED,
+        /** a run is currently in progress */
+        RUNNING,
+        /** a run is in progress and another one has been requested */
+        DIRTY
+    }
+
     private final TalkServer mServer;
 
+    private final DeliveryTimerWheel mTimerWheel;
+
+    private final PendingDeliveryCounter mPendingDeliveries = new PendingDeliveryCounter();
+
+    /**
+     * Outstanding delivery runs by client id (guarded by itself)
+     */
+    private final HashMap<String, RunState> mOutstanding = new HashMap<String, RunState>();
+
+    private final AtomicInteger mDeliveryRequests = new AtomicInteger();
+    private final AtomicInteger mDeliveryCoalesced = new AtomicInteger();
+    private final AtomicInteger mDeliveryExecuted = new AtomicInteger();
+
     public DeliveryAgent(TalkServer server) {
         super(
             TalkServerConfiguration.THREADS_DELIVERY,
+            server.getConfiguration().getDeliveryLanes(),
             "delivery-agent"
         );
         mServer = server;
+        mTimerWheel = new DeliveryTimerWheel(this, TIMER_TICK_DURATION, TIMER_WHEEL_SIZE);
+        DatabaseCursor<TalkDelivery> pendingDeliveries =
+                mServer.getDatabase().iterateDeliveriesInState(TalkDelivery.STATE_DELIVERING);
+        try {
+            mPendingDeliveries.rebuild(pendingDeliveries);
+        } finally {
+            pendingDeliveries.close();
+        }
+        initializeMetrics(mServer.getMetrics());
+    }
+
+    private void initializeMetrics(MetricRegistry metrics) {
+        metrics.register(MetricRegistry.name(DeliveryAgent.class, "deliveryRequests"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mDeliveryRequests.intValue();
+                    }
+                });
+        metrics.register(MetricRegistry.name(DeliveryAgent.class, "deliveryCoalesced"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mDeliveryCoalesced.intValue();
+                    }
+                });
+        metrics.register(MetricRegistry.name(DeliveryAgent.class, "deliveryExecuted"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mDeliveryExecuted.intValue();
+                    }
+                });
+        metrics.register(MetricRegistry.name(DeliveryAgent.class, "deliveryTimersArmed"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mTimerWheel.size();
+                    }
+                });
+        metrics.register(MetricRegistry.name(DeliveryAgent.class, "pendingDeliveries"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mPendingDeliveries.getTotal();
+                    }
+                });
+        metrics.register(MetricRegistry.name(DeliveryAgent.class, "pendingDeliveryReceivers"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return mPendingDeliveries.getReceiverCount();
+                    }
+                });
     }
 
     public TalkServer getServer() {
         return mServer;
     }
 
+    /**
+     * Returns the pending delivery counters by receiver
+     */
+    public PendingDeliveryCounter getPendingDeliveries() {
+        return mPendingDeliveries;
+    }
+
     public void requestDelivery(String clientId) {
-        final DeliveryRequest deliveryRequest = new DeliveryRequest(this, clientId);
+        mDeliveryRequests.incrementAndGet();
 
-        Runnable notificationGenerator = new Runnable() {
+        synchronized (mOutstanding) {
+            RunState state = mOutstanding.get(clientId);
+            if (state == RunState.QUEUED || state == RunState.DIRTY) {
+                // the queued or follow-up run will pick this up
+                mDeliveryCoalesced.incrementAndGet();
+                return;
+            }
+            if (state == RunState.RUNNING) {
+                // make the current run trigger a follow-up run
+                mDeliveryCoalesced.incrementAndGet();
+                mOutstanding.put(clientId, RunState.DIRTY);
+                return;
+            }
+            mOutstanding.put(clientId, RunState.QUEUED);
+        }
+
+        queueOrExecute(context, clientId, createDeliveryRun(clientId));
+    }
+
+    /**
+     * Request a delivery run for the given client once the given delay has passed
+     *
+     * @param clientId to deliver to
+     * @param delay    in milliseconds
+     */
+    public void scheduleDelivery(String clientId, long delay) {
+        mTimerWheel.schedule(clientId, delay);
+    }
+
+    private Runnable createDeliveryRun(final String clientId) {
+        return new Runnable() {
             @Override
             public void run() {
+                synchronized (mOutstanding) {
+                    mOutstanding.put(clientId, RunState.RUNNING);
+                }
                 try {
+                    mDeliveryExecuted.incrementAndGet();
+                    DeliveryRequest deliveryRequest = new DeliveryRequest(DeliveryAgent.this, clientId);
                     deliveryRequest.perform();
                 } catch (Throwable t) {
                     t.printStackTrace();
+                } finally {
+                    finishDeliveryRun(clientId);
                 }
             }
         };
+    }
 
-        queueOrExecute(context, notificationGenerator);
+    private void finishDeliveryRun(String clientId) {
+        synchronized (mOutstanding) {
+            if (mOutstanding.get(clientId) != RunState.DIRTY) {
+                mOutstanding.remove(clientId);
+                return;
+            }
+            mOutstanding.put(clientId, RunState.QUEUED);
+        }
+        // requests came in while we were running, so run once more
+        execute(clientId, createDeliveryRun(clientId));
     }
 
     public void setRequestContext() {
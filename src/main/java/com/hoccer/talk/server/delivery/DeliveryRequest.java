@@ -4,42 +4,55 @@ import com.hoccer.talk.model.TalkClient;
 import com.hoccer.talk.model.TalkDelivery;
 import com.hoccer.talk.model.TalkMessage;
 import com.hoccer.talk.rpc.ITalkRpcClient;
+import com.hoccer.talk.server.AsyncTalkServerDatabase;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.database.AsyncDatabaseAdapter;
+import com.hoccer.talk.server.rpc.ITalkRpcBulkClient;
 import com.hoccer.talk.server.rpc.TalkRpcConnection;
 import org.apache.log4j.Logger;
 
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * Delivery requests encapsulate a delivery run for a given client
  * <p/>
  * Both incoming and outgoing deliveries are handled in one go.
  * If clients are not connected the request is passed on to the push agent.
+ * Clients that support it get their incoming deliveries in batches.
  * Deliveries are rate-limited to one update every 5 seconds.
+ * Rate-limited deliveries are re-armed on the agent's timer wheel
+ * so they get retried as soon as their window has expired.
+ * Outgoing deliveries are looked up while incoming ones are delivered.
  */
 public class DeliveryRequest {
 
     private static final Logger LOG = Logger.getLogger(DeliveryRequest.class);
 
+    private static final long RATE_LIMIT = 5000; // in milliseconds
+
     String mClientId;
 
     DeliveryAgent mAgent;
 
     TalkServer mServer;
     ITalkServerDatabase mDatabase;
+    AsyncTalkServerDatabase mAsyncDatabase;
 
     public DeliveryRequest(DeliveryAgent agent, String clientId) {
         mClientId = clientId;
         mAgent = agent;
         mServer = mAgent.getServer();
         mDatabase = mServer.getDatabase();
+        mAsyncDatabase = mServer.getAsyncDatabase();
     }
 
     void perform() {
         boolean needToNotify = false;
         boolean currentlyConnected = false;
+        // shortest time until a rate-limited delivery may be retried
+        long retryDelay = -1;
 
         // determine if the client is currently connected
         TalkRpcConnection connection = mServer.getClientConnection(mClientId);
@@ -49,54 +62,67 @@ public class DeliveryRequest {
             rpc = connection.getClientRpc();
         }
 
-        // get all outstanding deliveries for the client
-        List<TalkDelivery> inDeliveries =
-                mDatabase.findDeliveriesForClientInState(mClientId, TalkDelivery.STATE_DELIVERING);
+        // outgoing deliveries are only reported to connected clients,
+        // look them up while incoming deliveries and messages are processed
+        Future<List<TalkDelivery>> outLookup = null;
+        if (currentlyConnected) {
+            outLookup = mAsyncDatabase.findDeliveriesFromClientInState(mClientId, TalkDelivery.STATE_DELIVERED);
+        }
+
+        // get all outstanding deliveries for the client, if there are any
+        PendingDeliveryCounter pendingDeliveries = mAgent.getPendingDeliveries();
+        List<TalkDelivery> inDeliveries = Collections.emptyList();
+        long pendingMark = pendingDeliveries.mark();
+        if (pendingDeliveries.needsQuery(mClientId)) {
+            inDeliveries = mDatabase.findDeliveriesForClientInState(mClientId, TalkDelivery.STATE_DELIVERING);
+            // correct the counter while we know the actual number, unless it changed meanwhile
+            pendingDeliveries.reset(mClientId, inDeliveries.size(), pendingMark);
+        }
         if (!inDeliveries.isEmpty()) {
             LOG.info("has " + inDeliveries.size() + " incoming deliveries");
             // we will need to push if we don't succeed
             needToNotify = true;
-            // deliver one by one
-            for (TalkDelivery delivery : inDeliveries) {
-                // we lost the connection somehow
-                if (!currentlyConnected) {
-                    break;
-                }
-
-                // rate limit
+            if (currentlyConnected) {
+                // collect deliveries that are not rate limited
                 long now = System.currentTimeMillis();
-                long delta = Math.max(0, now - delivery.getTimeUpdatedIn().getTime());
-                if (delta < 5000) {
-                    continue;
+                List<TalkDelivery> dueDeliveries = new ArrayList<TalkDelivery>();
+                Set<String> messageIds = new HashSet<String>();
+                for (TalkDelivery delivery : inDeliveries) {
+                    long delta = Math.max(0, now - delivery.getTimeUpdatedIn().getTime());
+                    if (delta < RATE_LIMIT) {
+                        retryDelay = shortestDelay(retryDelay, RATE_LIMIT - delta);
+                        continue;
+                    }
+                    dueDeliveries.add(delivery);
+                    messageIds.add(delivery.getMessageId());
                 }
 
-                // get the matching message
-                TalkMessage message = mDatabase.findMessageById(delivery.getMessageId());
-                if (message == null) {
-                    LOG.warn("message not found: " + delivery.getMessageId());
-                    continue;
+                // get the matching messages in one go
+                Map<String, TalkMessage> messages = new HashMap<String, TalkMessage>();
+                if (!messageIds.isEmpty()) {
+                    for (TalkMessage message : mDatabase.findMessagesByIds(messageIds)) {
+                        messages.put(message.getMessageId(), message);
+                    }
                 }
 
-                // post the delivery for the client
-                try {
-                    rpc.incomingDelivery(delivery, message);
-                    delivery.setTimeUpdatedIn(new Date());
-                    mDatabase.saveDelivery(delivery);
-                } catch (Exception e) {
-                    LOG.info("Exception calling incomingDelivery()", e);
-                    //currentlyConnected = false; XXX do this when we can differentiate
+                // deliver in order
+                if (connection.supportsBulkDeliveries()) {
+                    currentlyConnected = deliverInBatches(connection, dueDeliveries, messages);
+                } else {
+                    currentlyConnected = deliverOneByOne(connection, dueDeliveries, messages);
                 }
 
                 // check for disconnects
                 if (!connection.isConnected()) {
                     currentlyConnected = false;
                 }
-
             }
         }
 
-        List<TalkDelivery> outDeliveries =
-                mDatabase.findDeliveriesFromClientInState(mClientId, TalkDelivery.STATE_DELIVERED);
+        List<TalkDelivery> outDeliveries = Collections.emptyList();
+        if (outLookup != null) {
+            outDeliveries = AsyncDatabaseAdapter.await(outLookup);
+        }
         if (currentlyConnected && !outDeliveries.isEmpty()) {
             LOG.info("has " + outDeliveries.size() + " outgoing deliveries");
             // deliver one by one
@@ -109,15 +135,17 @@ public class DeliveryRequest {
                 // rate limit
                 long now = System.currentTimeMillis();
                 long delta = Math.max(0, now - delivery.getTimeUpdatedOut().getTime());
-                if (delta < 5000) {
+                if (delta < RATE_LIMIT) {
+                    retryDelay = shortestDelay(retryDelay, RATE_LIMIT - delta);
                     continue;
                 }
 
                 // notify it
                 try {
                     rpc.outgoingDelivery(delivery);
-                    delivery.setTimeUpdatedOut(new Date());
-                    mDatabase.saveDelivery(delivery);
+                    Date timeUpdatedOut = new Date();
+                    delivery.setTimeUpdatedOut(timeUpdatedOut);
+                    mDatabase.updateDeliveryTimeUpdatedOut(delivery.getMessageId(), delivery.getReceiverId(), timeUpdatedOut);
                 } catch (Exception e) {
                     LOG.info("Exception calling outgoingDelivery()");
                 }
@@ -129,6 +157,11 @@ public class DeliveryRequest {
             }
         }
 
+        // come back when the rate limit has expired
+        if (currentlyConnected && retryDelay >= 0) {
+            mAgent.scheduleDelivery(mClientId, retryDelay);
+        }
+
         // initiate push delivery if needed
         if (needToNotify && !currentlyConnected) {
             LOG.info("pushing " + mClientId);
@@ -136,6 +169,106 @@ public class DeliveryRequest {
         }
     }
 
+    private boolean deliverOneByOne(TalkRpcConnection connection,
+                                    List<TalkDelivery> deliveries, Map<String, TalkMessage> messages) {
+        ITalkRpcClient rpc = connection.getClientRpc();
+        for (TalkDelivery delivery : deliveries) {
+            // we lost the connection somehow
+            if (!connection.isConnected()) {
+                return false;
+            }
+
+            TalkMessage message = messages.get(delivery.getMessageId());
+            if (message == null) {
+                LOG.warn("message not found: " + delivery.getMessageId());
+                continue;
+            }
+
+            // post the delivery for the client
+            try {
+                rpc.incomingDelivery(delivery, message);
+                Date now = new Date();
+                delivery.setTimeUpdatedIn(now);
+                mDatabase.updateDeliveryTimeUpdatedIn(delivery.getMessageId(), delivery.getReceiverId(), now);
+            } catch (Exception e) {
+                LOG.info("Exception calling incomingDelivery()", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deliver in batches, in order
+     * <p/>
+     * Batches are sent one after the other. After a failed batch no further
+     * batch is sent, so later deliveries never overtake earlier ones. The
+     * remaining deliveries are still pending and are retried by a later run.
+     */
+    private boolean deliverInBatches(TalkRpcConnection connection,
+                                     List<TalkDelivery> deliveries, Map<String, TalkMessage> messages) {
+        ITalkRpcBulkClient rpc = connection.getClientBulkRpc();
+        int batchSize = Math.max(1, mServer.getConfiguration().getDeliveryBatchSize());
+        List<TalkDelivery> batchDeliveries = new ArrayList<TalkDelivery>(batchSize);
+        List<TalkMessage> batchMessages = new ArrayList<TalkMessage>(batchSize);
+        for (TalkDelivery delivery : deliveries) {
+            TalkMessage message = messages.get(delivery.getMessageId());
+            if (message == null) {
+                LOG.warn("message not found: " + delivery.getMessageId());
+                continue;
+            }
+            batchDeliveries.add(delivery);
+            batchMessages.add(message);
+
+            if (batchDeliveries.size() == batchSize) {
+                // we lost the connection somehow
+                if (!connection.isConnected()) {
+                    return false;
+                }
+                if (!deliverBatch(rpc, batchDeliveries, batchMessages)) {
+                    // retry the failed batch and everything after it later
+                    mAgent.scheduleDelivery(mClientId, RATE_LIMIT);
+                    return connection.isConnected();
+                }
+                batchDeliveries = new ArrayList<TalkDelivery>(batchSize);
+                batchMessages = new ArrayList<TalkMessage>(batchSize);
+            }
+        }
+        if (!batchDeliveries.isEmpty()) {
+            if (!connection.isConnected()) {
+                return false;
+            }
+            if (!deliverBatch(rpc, batchDeliveries, batchMessages)) {
+                // retry the failed batch later
+                mAgent.scheduleDelivery(mClientId, RATE_LIMIT);
+            }
+        }
+        return connection.isConnected();
+    }
+
+    /**
+     * @return false if the batch could not be delivered
+     */
+    private boolean deliverBatch(ITalkRpcBulkClient rpc, List<TalkDelivery> deliveries, List<TalkMessage> messages) {
+        try {
+            rpc.incomingDeliveries(
+                    deliveries.toArray(new TalkDelivery[deliveries.size()]),
+                    messages.toArray(new TalkMessage[messages.size()]));
+        } catch (Exception e) {
+            LOG.info("Exception calling incomingDeliveries()", e);
+            return false;
+        }
+        Date now = new Date();
+        for (TalkDelivery delivery : deliveries) {
+            delivery.setTimeUpdatedIn(now);
+            mDatabase.updateDeliveryTimeUpdatedIn(delivery.getMessageId(), delivery.getReceiverId(), now);
+        }
+        return true;
+    }
+
+    private static long shortestDelay(long current, long delay) {
+        return current < 0 ? delay : Math.min(current, delay);
+    }
+
     private void performPush() {
         // find client in database
         TalkClient client = mDatabase.findClientById(mClientId);
@@ -0,0 +1,133 @@
+package com.hoccer.talk.server.delivery;
+
+import com.hoccer.talk.util.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for re-arming rate-limited deliveries
+ * <p/>
+ * Deadlines are rounded up to the next tick and hashed into a fixed
+ * number of slots. A single thread advances the wheel once per tick
+ * and requests delivery for every client whose deadline has expired,
+ * so all clients whose rate-limit windows end within the same tick
+ * are handled as one batch. Each client is armed at most once, at its
+ * earliest deadline.
+ */
+public class DeliveryTimerWheel {
+
+    private static final Logger LOG = Logger.getLogger(DeliveryTimerWheel.class);
+
+    private final DeliveryAgent mAgent;
+
+    private final long mTickDuration;
+
+    private final long mStartTime;
+
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * Wheel slots, each mapping client ids to their deadline tick
+     */
+    private final List<Map<String, Long>> mSlots;
+
+    /**
+     * Deadline tick of every armed client
+     */
+    private final Map<String, Long> mDeadlines = new HashMap<String, Long>();
+
+    /**
+     * Next tick to be processed
+     */
+    private long mCurrentTick = 0;
+
+    public DeliveryTimerWheel(DeliveryAgent agent, long tickDuration, int wheelSize) {
+        mAgent = agent;
+        mTickDuration = tickDuration;
+        mStartTime = System.currentTimeMillis();
+        mSlots = new ArrayList<Map<String, Long>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            mSlots.add(new HashMap<String, Long>());
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("delivery-timer"));
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance();
+                } catch (Throwable t) {
+                    LOG.error("error advancing delivery timer wheel", t);
+                }
+            }
+        }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Arm a delivery run for the given client after the given delay
+     *
+     * @param clientId to request delivery for
+     * @param delay    in milliseconds
+     */
+    public synchronized void schedule(String clientId, long delay) {
+        long deadline = System.currentTimeMillis() + Math.max(0, delay);
+        // round up so we never fire before the window has expired
+        long tick = Math.max(mCurrentTick, (deadline - mStartTime + mTickDuration - 1) / mTickDuration);
+
+        Long armedTick = mDeadlines.get(clientId);
+        if (armedTick != null) {
+            if (armedTick <= tick) {
+                return;
+            }
+            slotFor(armedTick).remove(clientId);
+        }
+
+        mDeadlines.put(clientId, tick);
+        slotFor(tick).put(clientId, tick);
+    }
+
+    /**
+     * @return number of clients currently armed
+     */
+    public synchronized int size() {
+        return mDeadlines.size();
+    }
+
+    private Map<String, Long> slotFor(long tick) {
+        return mSlots.get((int) (tick % mSlots.size()));
+    }
+
+    private void advance() {
+        List<String> expired = new ArrayList<String>();
+        synchronized (this) {
+            long targetTick = (System.currentTimeMillis() - mStartTime) / mTickDuration;
+            while (mCurrentTick <= targetTick) {
+                Iterator<Map.Entry<String, Long>> it = slotFor(mCurrentTick).entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Long> entry = it.next();
+                    // entries for later rounds of the wheel stay in place
+                    if (entry.getValue() <= mCurrentTick) {
+                        it.remove();
+                        mDeadlines.remove(entry.getKey());
+                        expired.add(entry.getKey());
+                    }
+                }
+                mCurrentTick++;
+            }
+        }
+        if (!expired.isEmpty()) {
+            LOG.debug("rate limit expired for " + expired.size() + " clients, requesting delivery");
+            for (String clientId : expired) {
+                mAgent.requestDelivery(clientId);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.hoccer.talk.server.delivery;
+
+import com.hoccer.talk.model.TalkDelivery;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of pending (delivering) deliveries per receiver
+ * <p/>
+ * This is kept up to date on every delivery state transition so
+ * that callers can learn whether a client has anything waiting for it
+ * without going to the database. Receivers without pending deliveries
+ * have no entry.
+ * <p/>
+ * As a safety net against the counter being off, receivers can be marked
+ * for verification, which makes the next delivery run query the database
+ * regardless of their count. This is done whenever a client becomes ready.
+ */
+public class PendingDeliveryCounter {
+
+    private static final Logger LOG = Logger.getLogger(PendingDeliveryCounter.class);
+
+    /**
+     * Count of one receiver, stamped with the sequence number of its last change
+     */
+    private static class Entry {
+        final int count;
+        final long stamp;
+
+        Entry(int count, long stamp) {
+            this.count = count;
+            this.stamp = stamp;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> mCounts = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicInteger mTotal = new AtomicInteger();
+
+    /**
+     * Receivers whose deliveries must be queried once regardless of their count
+     */
+    private final Set<String> mUnverified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Incremented on every change, so corrections can tell whether they are stale
+     */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Rebuild all counters from the given delivering deliveries
+     */
+    public void rebuild(Iterator<TalkDelivery> deliveries) {
+        mCounts.clear();
+        mTotal.set(0);
+        while (deliveries.hasNext()) {
+            increment(deliveries.next().getReceiverId());
+        }
+        LOG.info("counted " + mTotal.get() + " pending deliveries for " + mCounts.size() + " receivers");
+    }
+
+    public int get(String receiverId) {
+        Entry entry = mCounts.get(receiverId);
+        return entry == null ? 0 : entry.count;
+    }
+
+    public boolean hasPending(String receiverId) {
+        return mCounts.containsKey(receiverId);
+    }
+
+    /**
+     * Make the next delivery run for the receiver query the database
+     */
+    public void verify(String receiverId) {
+        mUnverified.add(receiverId);
+    }
+
+    /**
+     * @return true if the deliveries of the receiver need to be queried,
+     *         clears a pending verification
+     */
+    public boolean needsQuery(String receiverId) {
+        boolean unverified = mUnverified.remove(receiverId);
+        return unverified || hasPending(receiverId);
+    }
+
+    public void increment(String receiverId) {
+        add(receiverId, 1);
+    }
+
+    public void decrement(String receiverId) {
+        add(receiverId, -1);
+    }
+
+    /**
+     * Mark the current state of all counters
+     * <p/>
+     * Must be taken before querying the actual number that is passed to reset().
+     */
+    public long mark() {
+        return mSequence.get();
+    }
+
+    /**
+     * Set the counter of the given receiver to the given value
+     * <p/>
+     * Used to correct the counter whenever the actual number is known.
+     * The correction is dropped if the counter has changed since the given
+     * mark, as the actual number may then be stale. A counter that has
+     * dropped to zero in the meantime may be raised again, which at worst
+     * causes one more query.
+     */
+    public void reset(String receiverId, int count, long mark) {
+        int delta;
+        while (true) {
+            Entry current = mCounts.get(receiverId);
+            if (current == null) {
+                if (count <= 0) {
+                    return;
+                }
+                if (mCounts.putIfAbsent(receiverId, new Entry(count, mSequence.incrementAndGet())) == null) {
+                    delta = count;
+                    break;
+                }
+            } else if (current.stamp > mark) {
+                LOG.debug("not correcting pending deliveries of " + receiverId + ", changed during query");
+                return;
+            } else if (count <= 0) {
+                if (mCounts.remove(receiverId, current)) {
+                    delta = -current.count;
+                    break;
+                }
+            } else if (mCounts.replace(receiverId, current, new Entry(count, mSequence.incrementAndGet()))) {
+                delta = count - current.count;
+                break;
+            }
+        }
+        if (delta != 0) {
+            LOG.debug("corrected pending deliveries of " + receiverId + " by " + delta);
+            mTotal.addAndGet(delta);
+        }
+    }
+
+    /**
+     * @return total number of pending deliveries
+     */
+    public int getTotal() {
+        return mTotal.get();
+    }
+
+    /**
+     * @return number of receivers with pending deliveries
+     */
+    public int getReceiverCount() {
+        return mCounts.size();
+    }
+
+    private void add(String receiverId, int delta) {
+        while (true) {
+            Entry current = mCounts.get(receiverId);
+            if (current == null) {
+                if (delta <= 0) {
+                    // never go below zero
+                    return;
+                }
+                if (mCounts.putIfAbsent(receiverId, new Entry(delta, mSequence.incrementAndGet())) == null) {
+                    break;
+                }
+            } else {
+                int count = current.count + delta;
+                if (count <= 0) {
+                    if (mCounts.remove(receiverId, current)) {
+                        mSequence.incrementAndGet();
+                        delta = -current.count;
+                        break;
+                    }
+                } else if (mCounts.replace(receiverId, current, new Entry(count, mSequence.incrementAndGet()))) {
+                    break;
+                }
+            }
+        }
+        mTotal.addAndGet(delta);
+    }
+
+}
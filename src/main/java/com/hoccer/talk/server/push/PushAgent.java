@@ -158,6 +158,10 @@ public class PushAgent {
         }
     }
 
+    public TalkServer getServer() {
+        return mServer;
+    }
+
     public TalkServerConfiguration getConfiguration() {
         return mConfig;
     }
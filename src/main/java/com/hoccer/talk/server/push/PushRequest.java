@@ -4,8 +4,6 @@ import com.google.android.gcm.server.Message;
 import com.google.android.gcm.server.Result;
 import com.google.android.gcm.server.Sender;
 import com.hoccer.talk.model.TalkClient;
-import com.hoccer.talk.model.TalkDelivery;
-import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServerConfiguration;
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
@@ -13,7 +11,6 @@ import com.notnoop.apns.PayloadBuilder;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * A single in-progress push request
@@ -83,16 +80,11 @@ public class PushRequest {
 
     private void performApns() {
         LOG.info("APNS push for " + mClientId);
-        ITalkServerDatabase database = mAgent.getDatabase();
         ApnsService apnsService = mAgent.getApnsService();
         PayloadBuilder b = APNS.newPayload();
-        List<TalkDelivery> deliveries =
-                database.findDeliveriesForClientInState(
-                        mClient.getClientId(),
-                        TalkDelivery.STATE_DELIVERING);
         int messageCount = 0;
         messageCount += mClient.getApnsUnreadMessages();
-        messageCount += (deliveries == null) ? 0 : deliveries.size();
+        messageCount += mAgent.getServer().getDeliveryAgent().getPendingDeliveries().get(mClient.getClientId());
         if (messageCount > 1) {
             b.localizedKey("apn_new_messages");
             b.localizedArguments(String.valueOf(messageCount));
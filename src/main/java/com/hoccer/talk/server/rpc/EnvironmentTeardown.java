@@ -0,0 +1,98 @@
+package com.hoccer.talk.server.rpc;
+
+import com.hoccer.talk.model.TalkEnvironment;
+import com.hoccer.talk.model.TalkGroup;
+import com.hoccer.talk.model.TalkGroupMember;
+import com.hoccer.talk.server.AsyncTalkServerDatabase;
+import com.hoccer.talk.server.ITalkServerDatabase;
+import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.database.AsyncDatabaseAdapter;
+import org.apache.log4j.Logger;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Destroys environments along with their group memberships
+ * <p/>
+ * The client leaves the group of its environment, offline members are
+ * removed with it and the group is removed once nobody is left.
+ * <p/>
+ * Used by the rpc handler when a client destroys its environment and by
+ * the cleaning agent for environments that have not been updated in time,
+ * so it does not depend on a connection.
+ */
+public class EnvironmentTeardown {
+
+    private static final Logger LOG = Logger.getLogger(EnvironmentTeardown.class);
+
+    private final TalkServer mServer;
+
+    private final ITalkServerDatabase mDatabase;
+
+    private final AsyncTalkServerDatabase mAsyncDatabase;
+
+    public EnvironmentTeardown(TalkServer server) {
+        mServer = server;
+        mDatabase = mServer.getDatabase();
+        mAsyncDatabase = mServer.getAsyncDatabase();
+    }
+
+    public void destroy(TalkEnvironment environment) {
+        Future<TalkGroup> groupLookup = mAsyncDatabase.findGroupById(environment.getGroupId());
+        Future<TalkGroupMember> memberLookup = mAsyncDatabase.findGroupMemberForClient(environment.getGroupId(), environment.getClientId());
+        TalkGroup group = AsyncDatabaseAdapter.await(groupLookup);
+        TalkGroupMember member = AsyncDatabaseAdapter.await(memberLookup);
+        if (member != null && member.getState().equals(TalkGroupMember.STATE_JOINED)) {
+            Date now = new Date();
+            removeGroupMember(member, now);
+            String[] states = {TalkGroupMember.STATE_JOINED};
+            List<TalkGroupMember> membersLeft = mDatabase.findGroupMembersByIdWithStates(environment.getGroupId(), states);
+            LOG.debug("destroyEnvironment: membersLeft: " + membersLeft.size());
+
+            // clean up other offline members that somehow might be stuck in the group
+            // although this should never happen except on crash or server restart
+            // The canonical place would be to check this on group join, but here
+            // we already have a list of all remaining members, so it will be faster
+            // and should cause less trouble than doing it on joining
+            int removedCount = 0;
+            for (int i = 0; i < membersLeft.size(); ++i) {
+                // cleanup other offline members
+                TalkGroupMember otherMember = membersLeft.get(i);
+                boolean isConnected = mServer.isClientConnected(otherMember.getClientId());
+                if (!isConnected) {
+                    // remove offline member from group
+                    removeGroupMember(otherMember, now);
+                    ++removedCount;
+                }
+            }
+            LOG.debug("destroyEnvironment: offline members removed: " + removedCount);
+
+            if (membersLeft.size() - removedCount <= 0) {
+                LOG.debug("destroyEnvironment: last member left, removing group " + group.getGroupId());
+                // last member removed, remove group
+                group.setState(TalkGroup.STATE_NONE);
+                group.setLastChanged(now);
+                mDatabase.saveGroup(group);
+                mServer.getUpdateAgent().requestGroupUpdate(group.getGroupId());
+                // explicitly request a group updated notification for the last removed client because
+                // the update above will not send out "groupUpdated" notifications to members with state "none"
+                mServer.getUpdateAgent().requestGroupUpdate(group.getGroupId(), environment.getClientId());
+            }
+        }
+        mDatabase.deleteEnvironment(environment);
+    }
+
+    private void removeGroupMember(TalkGroupMember member, Date now) {
+        // set membership state to NONE
+        member.setState(TalkGroupMember.STATE_NONE);
+        // degrade removed users to member
+        member.setRole(TalkGroupMember.ROLE_MEMBER);
+        member.trashPrivate();
+        member.setLastChanged(now);
+        mDatabase.saveGroupMember(member);
+        mServer.getUpdateAgent().requestGroupMembershipUpdate(member.getGroupId(), member.getClientId(), false);
+    }
+
+}
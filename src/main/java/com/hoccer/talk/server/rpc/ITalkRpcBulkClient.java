@@ -0,0 +1,22 @@
+package com.hoccer.talk.server.rpc;
+
+import com.hoccer.talk.model.TalkDelivery;
+import com.hoccer.talk.model.TalkMessage;
+
+/**
+ * Bulk extension of the client RPC interface
+ * <p/>
+ * Only available on connections using a protocol version
+ * that supports bulk deliveries (v3 and up).
+ */
+public interface ITalkRpcBulkClient {
+
+    /**
+     * Deliver a batch of incoming messages to the client
+     *
+     * @param deliveries to deliver
+     * @param messages   matching the deliveries by index
+     */
+    void incomingDeliveries(TalkDelivery[] deliveries, TalkMessage[] messages);
+
+}
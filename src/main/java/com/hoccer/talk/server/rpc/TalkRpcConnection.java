@@ -55,6 +55,11 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
      */
     private final ITalkRpcClient mClientRpc;
 
+    /**
+     * Bulk RPC interface to client (only usable if bulk deliveries are supported)
+     */
+    private final ITalkRpcBulkClient mClientBulkRpc;
+
     /**
      * Client object (if logged in)
      */
@@ -75,6 +80,7 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
      */
     private final HashMap<Object, Timer.Context> requestTimers= new HashMap<Object, Timer.Context>();
     private boolean mLegacyMode;
+    private boolean mBulkDeliveries;
 
     private Long mLastPingLatency;
     private Date mLastPingOccured;
@@ -96,6 +102,7 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
         mInitialRequest = request;
         // create a json-rpc proxy for client notifications and rpc calls
         mClientRpc = connection.makeProxy(ITalkRpcClient.class);
+        mClientBulkRpc = connection.makeProxy(ITalkRpcBulkClient.class);
         // register ourselves for connection events
         mConnection.addListener(this);
         mConnection.addConnectionEventListener(this);
@@ -173,6 +180,15 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
         return mClientRpc;
     }
 
+    /**
+     * Returns the bulk RPC interface to the client
+     * <p/>
+     * Only use this if the connection supports bulk deliveries.
+     */
+    public ITalkRpcBulkClient getClientBulkRpc() {
+        return mClientBulkRpc;
+    }
+
     /**
      *  returns the connections server call handler
      */
@@ -313,7 +329,9 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
             // notify server abount ready state
             mServer.readyClient(mTalkClient, this);
 
-            // attempt to deliver anything we might have
+            // attempt to deliver anything we might have, checking the
+            // database in case the pending delivery counter is off
+            mServer.getDeliveryAgent().getPendingDeliveries().verify(mTalkClient.getClientId());
             mServer.getDeliveryAgent().requestDelivery(mTalkClient.getClientId());
 
             // request a ping in a few seconds
@@ -405,6 +423,14 @@ public class TalkRpcConnection implements JsonRpcConnection.Listener, JsonRpcCon
         return mLegacyMode;
     }
 
+    public void setBulkDeliveries(boolean bulkDeliveries) {
+        this.mBulkDeliveries = bulkDeliveries;
+    }
+
+    public boolean supportsBulkDeliveries() {
+        return mBulkDeliveries;
+    }
+
 
     public Long getLastPingLatency() {
         return mLastPingLatency;
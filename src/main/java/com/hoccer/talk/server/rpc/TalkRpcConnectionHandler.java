@@ -30,6 +30,10 @@ public class TalkRpcConnectionHandler extends WebSocketHandler {
     public static final String TALK_TEXT_PROTOCOL_NAME_V2 = "com.hoccer.talk.v2";
     public static final String TALK_BINARY_PROTOCOL_NAME_V2 = "com.hoccer.talk.v2.bson";
 
+    // Version 3 (adds bulk deliveries)
+    public static final String TALK_TEXT_PROTOCOL_NAME_V3 = "com.hoccer.talk.v3";
+    public static final String TALK_BINARY_PROTOCOL_NAME_V3 = "com.hoccer.talk.v3.bson";
+
     /**
      * Talk server instance
      */
@@ -59,10 +63,14 @@ public class TalkRpcConnectionHandler extends WebSocketHandler {
      */
     @Override
     public WebSocket doWebSocketConnect(HttpServletRequest request, String protocol) {
-        if (TALK_TEXT_PROTOCOL_NAME_V2.equals(protocol)) {
-            return createTalkV2Connection(request, mTalkServer.getJsonMapper(), false);
+        if (TALK_TEXT_PROTOCOL_NAME_V3.equals(protocol)) {
+            return createTalkV2Connection(request, mTalkServer.getJsonMapper(), false, true);
+        } else if (TALK_BINARY_PROTOCOL_NAME_V3.equals(protocol)) {
+            return createTalkV2Connection(request, mTalkServer.getBsonMapper(), true, true);
+        } else if (TALK_TEXT_PROTOCOL_NAME_V2.equals(protocol)) {
+            return createTalkV2Connection(request, mTalkServer.getJsonMapper(), false, false);
         } else if (TALK_BINARY_PROTOCOL_NAME_V2.equals(protocol)) {
-            return createTalkV2Connection(request, mTalkServer.getBsonMapper(), true);
+            return createTalkV2Connection(request, mTalkServer.getBsonMapper(), true, false);
         } else if (TALK_TEXT_PROTOCOL_NAME_V1.equals(protocol)) {
             // Legacy handler for old clients connecting
             return createTalkV1Connection(request, mTalkServer.getJsonMapper(), false);
@@ -86,12 +94,13 @@ public class TalkRpcConnectionHandler extends WebSocketHandler {
         return connection;
     }
 
-    private WebSocket createTalkV2Connection(HttpServletRequest request, ObjectMapper mapper, boolean binary) {
+    private WebSocket createTalkV2Connection(HttpServletRequest request, ObjectMapper mapper, boolean binary, boolean bulkDeliveries) {
         // create JSON-RPC connection (this implements the websocket interface)
         JsonRpcWsConnection connection = new JsonRpcWsConnection(mapper);
         // create talk high-level connection object
         TalkRpcConnection rpcConnection = new TalkRpcConnection(mTalkServer, connection, request);
         // configure the connection
+        rpcConnection.setBulkDeliveries(bulkDeliveries);
         connection.setSendBinaryMessages(binary);
         connection.setMaxIdleTime(MAX_IDLE_TIME);
         connection.setAnswerKeepAlives(true);
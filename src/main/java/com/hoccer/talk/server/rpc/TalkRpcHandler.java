@@ -2,9 +2,14 @@ package com.hoccer.talk.server.rpc;
 
 import com.hoccer.talk.model.*;
 import com.hoccer.talk.rpc.ITalkRpcServer;
+import com.hoccer.talk.server.AsyncTalkServerDatabase;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.ITalkServerStatistics;
 import com.hoccer.talk.server.TalkServer;
+import com.hoccer.talk.server.database.AsyncDatabaseAdapter;
+import com.hoccer.talk.server.database.GroupMembershipIndex;
+import com.hoccer.talk.server.database.GroupMembershipView;
+import com.hoccer.talk.server.delivery.PendingDeliveryCounter;
 import com.hoccer.talk.srp.SRP6Parameters;
 import com.hoccer.talk.srp.SRP6VerifyingServer;
 import com.hoccer.talk.util.MapUtil;
@@ -24,6 +29,7 @@ import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * RPC handler for talk protocol communications
@@ -59,6 +65,16 @@ public class TalkRpcHandler implements ITalkRpcServer {
      */
     final private ITalkServerDatabase mDatabase;
 
+    /**
+     * Reference to asynchronous database accessor
+     */
+    final private AsyncTalkServerDatabase mAsyncDatabase;
+
+    /**
+     * Environment teardown shared with the cleaning agent
+     */
+    final private EnvironmentTeardown mEnvironmentTeardown;
+
     /**
      * Reference to stats collector
      */
@@ -83,9 +99,18 @@ public class TalkRpcHandler implements ITalkRpcServer {
         mServer = pServer;
         mConnection = pConnection;
         mDatabase = mServer.getDatabase();
+        mAsyncDatabase = mServer.getAsyncDatabase();
+        mEnvironmentTeardown = new EnvironmentTeardown(mServer);
         mStatistics = mServer.getStatistics();
     }
 
+    /**
+     * Wait for the result of an asynchronous database lookup
+     */
+    private static <T> T await(Future<T> lookup) {
+        return AsyncDatabaseAdapter.await(lookup);
+    }
+
     private void requireIsNotOutdated() {
         if (mConnection.isLegacyMode()) {
             throw new RuntimeException("Client too old");
@@ -155,6 +180,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
         serverInfo.setSupportMode(mConnection.isSupportMode());
         serverInfo.setVersion(mServer.getConfiguration().getVersion());
         serverInfo.setCommitId(mServer.getConfiguration().getGitInfo().commitId);
+        serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_TEXT_PROTOCOL_NAME_V3);
+        serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_BINARY_PROTOCOL_NAME_V3);
         serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_TEXT_PROTOCOL_NAME_V2);
         serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_BINARY_PROTOCOL_NAME_V2);
 
@@ -502,15 +529,8 @@ public class TalkRpcHandler implements ITalkRpcServer {
         if (relationship != null && relationship.isFriend()) {
             key = mDatabase.findKey(clientId, keyId);
         } else {
-            List<TalkGroupMember> members = mDatabase.findGroupMembersForClient(mConnection.getClientId());
-            for (TalkGroupMember member : members) {
-                if (member.isJoined() || member.isInvited()) {
-                    TalkGroupMember otherMember = mDatabase.findGroupMemberForClient(member.getGroupId(), clientId);
-                    if (otherMember != null && (otherMember.isJoined() || otherMember.isInvited())) {
-                        key = mDatabase.findKey(clientId, keyId);
-                        break;
-                    }
-                }
+            if (mDatabase.getGroupMembershipIndex().shareActiveGroup(mConnection.getClientId(), clientId)) {
+                key = mDatabase.findKey(clientId, keyId);
             }
         }
 
@@ -809,12 +829,14 @@ public class TalkRpcHandler implements ITalkRpcServer {
         // process all accepted deliveries
         if (!acceptedDeliveries.isEmpty()) {
             // save deliveries first so messages get collected
-            for (TalkDelivery ds : acceptedDeliveries) {
-                mDatabase.saveDelivery(ds);
-            }
+            mDatabase.saveDeliveries(acceptedDeliveries);
             mDatabase.saveMessage(message);
             // initiate delivery for all recipients
+            PendingDeliveryCounter pendingDeliveries = mServer.getDeliveryAgent().getPendingDeliveries();
             for (TalkDelivery ds : acceptedDeliveries) {
+                if (TalkDelivery.STATE_DELIVERING.equals(ds.getState())) {
+                    pendingDeliveries.increment(ds.getReceiverId());
+                }
                 mServer.getDeliveryAgent().requestDelivery(ds.getReceiverId());
             }
         }
@@ -838,22 +860,29 @@ public class TalkRpcHandler implements ITalkRpcServer {
         if (delivery.isGroupDelivery()) {
             String groupId = delivery.getGroupId();
 
+            // look up group, sender membership and members concurrently
+            Future<TalkGroup> groupLookup = mAsyncDatabase.findGroupById(groupId);
+            Future<GroupMembershipView> membershipLookup = mAsyncDatabase.findGroupMembershipForClient(groupId, senderId);
+            Future<List<TalkGroupMember>> membersLookup = mAsyncDatabase.findGroupMembersById(groupId);
+
             // check that group exists
-            TalkGroup group = mDatabase.findGroupById(groupId);
+            TalkGroup group = await(groupLookup);
             if (group == null) {
                 LOG.info("delivery rejected: no such group");
                 delivery.setState(TalkDelivery.STATE_FAILED);
                 return result;
             }
             // check that sender is member of group
-            TalkGroupMember clientMember = mDatabase.findGroupMemberForClient(groupId, senderId);
+            GroupMembershipView clientMember = await(membershipLookup);
             if (clientMember == null || !clientMember.isMember()) {
                 LOG.info("delivery rejected: not a member of group");
                 delivery.setState(TalkDelivery.STATE_FAILED);
                 return result;
             }
-            // deliver to each group member
-            List<TalkGroupMember> members = mDatabase.findGroupMembersById(groupId);
+            // determine candidate recipients among the group members
+            List<TalkGroupMember> members = await(membersLookup);
+            List<TalkGroupMember> recipients = new ArrayList<TalkGroupMember>();
+            Set<String> recipientIds = new HashSet<String>();
             for (TalkGroupMember member : members) {
                 if (member.getClientId().equals(senderId)) {
                     continue;
@@ -861,6 +890,14 @@ public class TalkRpcHandler implements ITalkRpcServer {
                 if (!member.isJoined()) {
                     continue;
                 }
+                recipients.add(member);
+                recipientIds.add(member.getClientId());
+            }
+            // validate all recipients in one go
+            Set<String> existingRecipientIds = mDatabase.existingClientIds(recipientIds);
+
+            // deliver to each group member
+            for (TalkGroupMember member : recipients) {
                 if (member.getEncryptedGroupKey() == null) {
                     LOG.warn("have no group key, discarding group message " + message.getMessageId() + " for client " + member.getClientId() + " group " + groupId);
                     continue;
@@ -883,7 +920,7 @@ public class TalkRpcHandler implements ITalkRpcServer {
                 memberDelivery.setState(TalkDelivery.STATE_DELIVERING);
                 memberDelivery.setTimeAccepted(currentDate);
 
-                boolean success = performOneDelivery(message, memberDelivery);
+                boolean success = performOneDelivery(message, memberDelivery, existingRecipientIds);
                 if (success) {
                     result.add(memberDelivery);
                     // group deliveries are confirmed from acceptance
@@ -899,14 +936,18 @@ public class TalkRpcHandler implements ITalkRpcServer {
             2) Otherwise check if the sender has a valid relationship to the recipient that allows message delivery
             */
             String recipientId = delivery.getReceiverId();
-            final TalkRelationship relationship = mDatabase.findRelationshipBetween(recipientId, senderId);
+
+            // look up relationship and recipient concurrently
+            Future<TalkRelationship> relationshipLookup = mAsyncDatabase.findRelationshipBetween(recipientId, senderId);
+            Future<Set<String>> recipientLookup = mAsyncDatabase.existingClientIds(Collections.singleton(recipientId));
+            final TalkRelationship relationship = await(relationshipLookup);
 
             if (isBlocking(relationship)) {
                 LOG.info("Recipient: '" + recipientId + "' blocks sender: '" + senderId + "' -> Blocking delivery");
                 delivery.setState(TalkDelivery.STATE_FAILED);
             } else if (areBefriended(relationship, recipientId, senderId) ||
                     areRelatedViaGroupMembership(senderId, recipientId)) {
-                if (performOneDelivery(message, delivery)) {
+                if (performOneDelivery(message, delivery, await(recipientLookup))) {
                     result.add(delivery);
                     // mark delivery as in progress
                     delivery.setState(TalkDelivery.STATE_DELIVERING);
@@ -923,23 +964,9 @@ public class TalkRpcHandler implements ITalkRpcServer {
     }
 
     private boolean areRelatedViaGroupMembership(String clientId1, String clientId2) {
-        final List<TalkGroupMember> client1Groupmembers = mDatabase.findGroupMembersForClient(clientId1);
-        final List<String> client1GroupIds = new ArrayList<String>();
-        for (TalkGroupMember groupMember : client1Groupmembers) {
-            LOG.debug("  * client1 membership state in group: '" + groupMember.getGroupId() + "':" + groupMember.getState());
-            if (groupMember.isJoined()) {
-                client1GroupIds.add(groupMember.getGroupId());
-            }
-        }
-
-        final List<TalkGroupMember> client2Groupmembers = mDatabase.findGroupMembersForClient(clientId2);
-        for (TalkGroupMember groupMember : client2Groupmembers) {
-            LOG.debug("  * client2 membership state in group: '" + groupMember.getGroupId() + "':" + groupMember.getState());
-            if (client1GroupIds.indexOf(groupMember.getGroupId()) != -1 &&
-                    groupMember.isJoined()) {
-                LOG.info("clients '" + clientId1 + "' and '" + clientId2 + "' are both joined in group! (groupId: '" + groupMember.getGroupId() + "')");
-                return true;
-            }
+        if (mDatabase.getGroupMembershipIndex().shareJoinedGroup(clientId1, clientId2)) {
+            LOG.info("clients '" + clientId1 + "' and '" + clientId2 + "' are both joined in a common group");
+            return true;
         }
 
         LOG.info("clients '" + clientId1 + "' and '" + clientId2 + "' are NOT both joined in the same group");
@@ -969,7 +996,7 @@ public class TalkRpcHandler implements ITalkRpcServer {
         return true;
     }
 
-    private boolean performOneDelivery(TalkMessage m, TalkDelivery delivery) {
+    private boolean performOneDelivery(TalkMessage m, TalkDelivery delivery, Set<String> existingReceiverIds) {
         // who is doing this again?
         String clientId = mConnection.getClientId();
         // get the receiver
@@ -984,8 +1011,7 @@ public class TalkRpcHandler implements ITalkRpcServer {
         }
 
         // reject messages to nonexisting clients
-        TalkClient receiver = mDatabase.findClientById(receiverId);
-        if (receiver == null) {
+        if (!existingReceiverIds.contains(receiverId)) {
             LOG.info("delivery rejected: recipient with id '" + receiverId + "' does not exist");
             // mark delivery failed
             delivery.setState(TalkDelivery.STATE_FAILED);
@@ -1051,9 +1077,19 @@ public class TalkRpcHandler implements ITalkRpcServer {
     }
 
     private void setDeliveryState(TalkDelivery delivery, String state) {
+        String previousState = delivery.getState();
+        Date now = new Date();
+        boolean changed = mDatabase.updateDeliveryState(
+                delivery.getMessageId(), delivery.getReceiverId(), previousState, state, now);
+        if (!changed) {
+            // somebody else got there first, leave it to them
+            LOG.info("delivery of message '" + delivery.getMessageId() + "' for '" + delivery.getReceiverId()
+                    + "' is no longer in state '" + previousState + "', not changing it to '" + state + "'");
+            return;
+        }
         delivery.setState(state);
-        delivery.setTimeChanged(new Date());
-        mDatabase.saveDelivery(delivery);
+        delivery.setTimeChanged(now);
+        updatePendingDeliveries(delivery.getReceiverId(), previousState, state);
         if (TalkDelivery.STATE_DELIVERED.equals(state)) {
             mServer.getDeliveryAgent().requestDelivery(delivery.getSenderId());
         } else if (TalkDelivery.STATE_DELIVERING.equals(state)) {
@@ -1063,6 +1099,16 @@ public class TalkRpcHandler implements ITalkRpcServer {
         }
     }
 
+    private void updatePendingDeliveries(String receiverId, String previousState, String state) {
+        boolean wasPending = TalkDelivery.STATE_DELIVERING.equals(previousState);
+        boolean isPending = TalkDelivery.STATE_DELIVERING.equals(state);
+        if (wasPending && !isPending) {
+            mServer.getDeliveryAgent().getPendingDeliveries().decrement(receiverId);
+        } else if (isPending && !wasPending) {
+            mServer.getDeliveryAgent().getPendingDeliveries().increment(receiverId);
+        }
+    }
+
     @Override
     public String createGroup(TalkGroup group) {
         requireIdentification();
@@ -1299,7 +1345,7 @@ public class TalkRpcHandler implements ITalkRpcServer {
     @Override
     public TalkGroupMember[] getGroupMembers(String groupId, Date lastKnown) {
         requireIdentification();
-        requiredGroupInvitedOrMember(groupId);
+        requireGroupInvitedOrMember(groupId);
         logCall("getGroupMembers(groupId: '" + groupId + "' / lastKnown: '" + lastKnown + "')");
 
         List<TalkGroupMember> members = mDatabase.findGroupMembersByIdChangedAfter(groupId, lastKnown);
@@ -1327,13 +1373,22 @@ public class TalkRpcHandler implements ITalkRpcServer {
     }
 
     private void requireGroupAdmin(String groupId) {
-        TalkGroupMember gm = mDatabase.findGroupMemberForClient(groupId, mConnection.getClientId());
+        GroupMembershipView gm = mDatabase.findGroupMembershipForClient(groupId, mConnection.getClientId());
         if (gm != null && gm.isAdmin()) {
             return;
         }
         throw new RuntimeException("Client is not an admin in group with id: '" + groupId + "'");
     }
 
+    private GroupMembershipView requireGroupInvitedOrMember(String groupId) {
+        GroupMembershipView gm = mDatabase.findGroupMembershipForClient(groupId, mConnection.getClientId());
+        if (gm != null && (gm.isInvited() || gm.isMember())) {
+            return gm;
+        }
+        throw new RuntimeException("Client is not a member in group with id: '" + groupId + "'");
+    }
+
+    // loads the whole member, only for callers that modify it
     private TalkGroupMember requiredGroupInvitedOrMember(String groupId) {
         TalkGroupMember gm = mDatabase.findGroupMemberForClient(groupId, mConnection.getClientId());
         if (gm != null && (gm.isInvited() || gm.isMember())) {
@@ -1470,15 +1525,20 @@ public class TalkRpcHandler implements ITalkRpcServer {
         environment.setTimeReceived(new Date());
         environment.setClientId(mConnection.getClientId());
 
-        List<TalkEnvironment> matching = mDatabase.findEnvironmentsMatching(environment);
-        TalkEnvironment myEnvironment = mDatabase.findEnvironmentByClientId(environment.getType(), mConnection.getClientId());
+        // look up matching environments and our own environment concurrently
+        Future<List<TalkEnvironment>> matchingLookup = mAsyncDatabase.findEnvironmentsMatching(environment);
+        Future<TalkEnvironment> myEnvironmentLookup = mAsyncDatabase.findEnvironmentByClientId(environment.getType(), mConnection.getClientId());
+        List<TalkEnvironment> matching = await(matchingLookup);
+        TalkEnvironment myEnvironment = await(myEnvironmentLookup);
         ArrayList<Pair<String, Integer>> environmentsPerGroup = findGroupSortedBySize(matching);
 
         for (TalkEnvironment te : matching) {
             if (te.getClientId().equals(mConnection.getClientId())) {
                 // there is already a matching environment for us
-                TalkGroupMember myMemberShip = mDatabase.findGroupMemberForClient(te.getGroupId(), te.getClientId());
-                TalkGroup myGroup = mDatabase.findGroupById(te.getGroupId());
+                Future<TalkGroupMember> myMemberShipLookup = mAsyncDatabase.findGroupMemberForClient(te.getGroupId(), te.getClientId());
+                Future<TalkGroup> myGroupLookup = mAsyncDatabase.findGroupById(te.getGroupId());
+                TalkGroupMember myMemberShip = await(myMemberShipLookup);
+                TalkGroup myGroup = await(myGroupLookup);
                 if (myMemberShip != null && myGroup != null) {
                     if (myMemberShip.isAdmin() && myMemberShip.isJoined() && myGroup.getState().equals(TalkGroup.STATE_EXISTS)) {
                         // everything seems fine, but are we in the largest group?
@@ -1532,56 +1592,9 @@ public class TalkRpcHandler implements ITalkRpcServer {
         return environment.getGroupId();
     }
 
-    private void removeGroupMember(TalkGroupMember member, Date now) {
-        // remove my membership
-        // set membership state to NONE
-        member.setState(TalkGroupMember.STATE_NONE);
-        // degrade removed users to member
-        member.setRole(TalkGroupMember.ROLE_MEMBER);
-        member.trashPrivate();
-        changedGroupMember(member, now, false);
-    }
-
     private void destroyEnvironment(TalkEnvironment environment) {
         logCall("destroyEnvironment(" + environment + ")");
-        TalkGroup group = mDatabase.findGroupById(environment.getGroupId());
-        TalkGroupMember member = mDatabase.findGroupMemberForClient(environment.getGroupId(), environment.getClientId());
-        if (member != null && member.getState().equals(TalkGroupMember.STATE_JOINED)) {
-            Date now = new Date();
-            removeGroupMember(member, now);
-            String[] states = {TalkGroupMember.STATE_JOINED};
-            List<TalkGroupMember> membersLeft = mDatabase.findGroupMembersByIdWithStates(environment.getGroupId(), states);
-            logCall("destroyEnvironment: membersLeft: " + membersLeft.size());
-
-            // clean up other offline members that somehow might be stuck in the group
-            // although this should never happen except on crash or server restart
-            // The canonical place would be to check this on group join, but here
-            // we already have a list of all remaining members, so it will be faster
-            // and should cause less trouble than doing it on joining
-            int removedCount = 0;
-            for (int i = 0; i < membersLeft.size(); ++i) {
-                // cleanup other offline members
-                TalkGroupMember otherMember = membersLeft.get(i);
-                boolean isConnected = mServer.isClientConnected(otherMember.getClientId());
-                if (!isConnected) {
-                    // remove offline member from group
-                    removeGroupMember(otherMember, now);
-                    ++removedCount;
-                }
-            }
-            logCall("destroyEnvironment: offline members removed: " + removedCount);
-
-            if (membersLeft.size() - removedCount <= 0) {
-                logCall("destroyEnvironment: last member left, removing group " + group.getGroupId());
-                // last member removed, remove group
-                group.setState(TalkGroup.STATE_NONE);
-                changedGroup(group, now);
-                // explicitly request a group updated notification for the last removed client because
-                // calling changedGroup only will not send out "groupUpdated" notifications to members with state "none"
-                mServer.getUpdateAgent().requestGroupUpdate(group.getGroupId(), environment.getClientId());
-            }
-        }
-        mDatabase.deleteEnvironment(environment);
+        mEnvironmentTeardown.destroy(environment);
     }
 
     @Override
@@ -1606,9 +1619,9 @@ public class TalkRpcHandler implements ITalkRpcServer {
         logCall("isMemberInGroups(groupIds: '" + Arrays.toString(groupIds) + "'");
         String clientId = mConnection.getClientId();
 
+        GroupMembershipIndex memberships = mDatabase.getGroupMembershipIndex();
         for (String groupId : groupIds) {
-            TalkGroupMember membership = mDatabase.findGroupMemberForClient(groupId, clientId);
-            if (membership != null && (membership.isInvited() || membership.isMember())) {
+            if (memberships.isInvited(groupId, clientId) || memberships.isMember(groupId, clientId)) {
                 result.add(true);
             } else {
                 result.add(false);
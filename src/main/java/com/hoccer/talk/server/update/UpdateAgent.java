@@ -5,33 +5,51 @@ import com.hoccer.talk.model.TalkGroupMember;
 import com.hoccer.talk.model.TalkPresence;
 import com.hoccer.talk.model.TalkRelationship;
 import com.hoccer.talk.rpc.ITalkRpcClient;
+import com.hoccer.talk.server.AsyncTalkServerDatabase;
 import com.hoccer.talk.server.ITalkServerDatabase;
 import com.hoccer.talk.server.TalkServer;
 import com.hoccer.talk.server.TalkServerConfiguration;
 import com.hoccer.talk.server.agents.NotificationDeferrer;
+import com.hoccer.talk.server.database.AsyncDatabaseAdapter;
 import com.hoccer.talk.server.rpc.TalkRpcConnection;
 import com.hoccer.talk.util.MapUtil;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * Agent for simple updates (presence, group presence, relationship)
+ * <p/>
+ * Group-related work is keyed by group id, everything else by the client
+ * it concerns, so that the agent can be run on multiple lanes.
+ * Independent lookups of a notification are performed concurrently,
+ * lookups per group member are done in one query.
  */
 public class UpdateAgent extends NotificationDeferrer {
     private final TalkServer mServer;
 
     private final ITalkServerDatabase mDatabase;
 
+    private final AsyncTalkServerDatabase mAsyncDatabase;
+
     private static final ThreadLocal<ArrayList<Runnable>> context = new ThreadLocal<ArrayList<Runnable>>();
 
     private final static Long MAX_ALLOWED_KEY_REQUEST_LATENCY = 10000L;
 
     public UpdateAgent(TalkServer server) {
-        super(TalkServerConfiguration.THREADS_UPDATE, "update-agent");
+        super(TalkServerConfiguration.THREADS_UPDATE, server.getConfiguration().getUpdateLanes(), "update-agent");
         mServer = server;
         mDatabase = mServer.getDatabase();
+        mAsyncDatabase = mServer.getAsyncDatabase();
+    }
+
+    /**
+     * Wait for the result of an asynchronous database lookup
+     */
+    private static <T> T await(Future<T> lookup) {
+        return AsyncDatabaseAdapter.await(lookup);
     }
 
     private void updateConnectionStatus(TalkPresence presence) {
@@ -60,13 +78,28 @@ public class UpdateAgent extends NotificationDeferrer {
                     TalkGroupMember member = mDatabase.findGroupMemberForClient(groupId, clientId);
                     if (member.isInvited() || member.isJoined()) {
                         List<TalkGroupMember> members = mDatabase.findGroupMembersById(groupId);
+                        // look up all presences in one query, deliver them in member order
+                        Set<String> clientIds = new HashSet<String>();
+                        for (TalkGroupMember otherMember : members) {
+                            if (otherMember.isJoined() || otherMember.isInvited()) {
+                                clientIds.add(otherMember.getClientId());
+                            }
+                        }
+                        Map<String, TalkPresence> presences = new HashMap<String, TalkPresence>();
+                        for (TalkPresence presence : mDatabase.findPresencesForClients(clientIds)) {
+                            presences.put(presence.getClientId(), presence);
+                        }
                         for (TalkGroupMember otherMember : members) {
                             // TODO: Check if filtering self(clientId) is necessary
                             // only if otherMember != member
                             if (otherMember.isJoined() || otherMember.isInvited()) {
                                 String clientId = otherMember.getClientId();
                                 LOG.debug("RPUFG: delivering presence of " + clientId);
-                                TalkPresence presence = mDatabase.findPresenceForClient(clientId);
+                                TalkPresence presence = presences.get(clientId);
+                                if (presence == null) {
+                                    LOG.debug("RPUFG: no presence for " + clientId);
+                                    continue;
+                                }
                                 if (presence.getConnectionStatus() == null) {
                                     updateConnectionStatus(presence);
                                 }
@@ -85,7 +118,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notificationGenerator);
+        queueOrExecute(context, clientId, notificationGenerator);
     }
 
     public void requestPresenceUpdateForClient(final String clientId, final String targetClientId) {
@@ -108,7 +141,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notificationGenerator);
+        queueOrExecute(context, targetClientId, notificationGenerator);
     }
 
     public void requestPresenceUpdate(final String clientId, final Set<String> fields) {
@@ -127,7 +160,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notificationGenerator);
+        queueOrExecute(context, clientId, notificationGenerator);
     }
 
     private void performPresenceUpdate(TalkPresence presence, final Set<String> fields) {
@@ -136,38 +169,9 @@ public class UpdateAgent extends NotificationDeferrer {
 
         // own client id
         String selfClientId = presence.getClientId();
-        // set to collect clientIds into
-        Set<String> clientIds = new HashSet<String>();
-        // collect clientIds known through relationships
-        List<TalkRelationship> relationships = mDatabase.findRelationshipsByOtherClient(selfClientId);
-        for (TalkRelationship relationship : relationships) {
-            // if the relation is friendly
-            if (relationship.isFriend()) {
-                LOG.trace(tag + "including friend " + relationship.getClientId());
-                clientIds.add(relationship.getClientId());
-            }
-            // XXX what about isBlocked()?
-        }
-        // collect clientIds known through groups
-        List<TalkGroupMember> ownMembers = mDatabase.findGroupMembersForClient(selfClientId);
-        for (TalkGroupMember ownMember : ownMembers) {
-            String groupId = ownMember.getGroupId();
-            if (ownMember.isJoined() || ownMember.isInvited()) {
-                LOG.trace(tag + "scanning group " + groupId);
-                List<TalkGroupMember> otherMembers = mDatabase.findGroupMembersById(groupId);
-                for (TalkGroupMember otherMember : otherMembers) {
-                    if (otherMember.isJoined() || ownMember.isInvited()) { // MARK
-                        LOG.trace(tag + "including group member " + otherMember.getClientId());
-                        clientIds.add(otherMember.getClientId());
-                    } else {
-                        LOG.trace(tag + "not including group member " + otherMember.getClientId() + " in state " + otherMember.getState());
-                    }
-                }
-            }
-        }
-        // remove self
-        LOG.trace(tag + "excluding self " + selfClientId);
-        clientIds.remove(selfClientId);
+        // everyone who befriended us or shares an active group with us
+        Set<String> clientIds = mDatabase.getAudienceIndex().getAudience(selfClientId);
+        LOG.trace(tag + "audience has " + clientIds.size() + " clients");
 
         TalkPresence modifiedPresence = null;
         if (fields != null) {
@@ -211,7 +215,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notificationGenerator);
+        queueOrExecute(context, relationship.getClientId(), notificationGenerator);
     }
 
     public void requestGroupUpdate(final String groupId, final String clientId) {
@@ -235,16 +239,18 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notificationGenerator);
+        queueOrExecute(context, groupId, notificationGenerator);
     }
 
     public void requestGroupUpdate(final String groupId) {
         Runnable notification = new Runnable() {
             @Override
             public void run() {
-                TalkGroup updatedGroup = mDatabase.findGroupById(groupId);
+                Future<TalkGroup> groupLookup = mAsyncDatabase.findGroupById(groupId);
+                Future<List<TalkGroupMember>> membersLookup = mAsyncDatabase.findGroupMembersById(groupId);
+                TalkGroup updatedGroup = await(groupLookup);
                 if (updatedGroup != null) {
-                    List<TalkGroupMember> members = mDatabase.findGroupMembersById(groupId);
+                    List<TalkGroupMember> members = await(membersLookup);
                     for (TalkGroupMember member : members) {
                         if (member.isJoined() || member.isInvited() || member.isGroupRemoved()) {
                             TalkRpcConnection connection = mServer.getClientConnection(member.getClientId());
@@ -264,7 +270,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notification);
+        queueOrExecute(context, groupId, notification);
     }
 
     // TODO: optimze update calls based in isNew
@@ -273,7 +279,9 @@ public class UpdateAgent extends NotificationDeferrer {
         Runnable notificationGenerator = new Runnable() {
             @Override
             public void run() {
-                TalkGroupMember updatedMember = mDatabase.findGroupMemberForClient(groupId, clientId);
+                Future<TalkGroupMember> updatedMemberLookup = mAsyncDatabase.findGroupMemberForClient(groupId, clientId);
+                Future<List<TalkGroupMember>> membersLookup = mAsyncDatabase.findGroupMembersById(groupId);
+                TalkGroupMember updatedMember = await(updatedMemberLookup);
                 if (updatedMember == null) {
                     LOG.debug("requestGroupMembershipUpdate updatedMember is null");
                     return;
@@ -281,7 +289,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 TalkGroupMember foreignMember = new TalkGroupMember();
                 foreignMember.foreignUpdateWith(updatedMember);
 
-                List<TalkGroupMember> members = mDatabase.findGroupMembersById(groupId);
+                List<TalkGroupMember> members = await(membersLookup);
                 LOG.debug("requestGroupMembershipUpdate found " + members.size() + " members");
                 boolean someOneWasNotified = false;
                 for (TalkGroupMember member : members) {
@@ -314,7 +322,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notificationGenerator);
+        queueOrExecute(context, groupId, notificationGenerator);
     }
 
     // call once for a new group member, will send out groupMemberUpdated-Notifications to new member with all other group members
@@ -323,12 +331,14 @@ public class UpdateAgent extends NotificationDeferrer {
         Runnable notificationGenerator = new Runnable() {
             @Override
             public void run() {
-                TalkGroupMember newMember = mDatabase.findGroupMemberForClient(groupId, newMemberClientId);
+                Future<TalkGroupMember> newMemberLookup = mAsyncDatabase.findGroupMemberForClient(groupId, newMemberClientId);
+                Future<List<TalkGroupMember>> membersLookup = mAsyncDatabase.findGroupMembersById(groupId);
+                TalkGroupMember newMember = await(newMemberLookup);
                 if (newMember == null) {
                     LOG.debug("requestGroupMembershipUpdateForNewMember can't find newMember, is null");
                     return;
                 }
-                List<TalkGroupMember> members = mDatabase.findGroupMembersById(groupId);
+                List<TalkGroupMember> members = await(membersLookup);
                 LOG.debug("requestGroupMembershipUpdateForNewMember found " + members.size() + " members");
                 TalkRpcConnection connection = mServer.getClientConnection(newMember.getClientId());
                 if (connection == null || !connection.isConnected()) {
@@ -352,7 +362,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 }
             }
         };
-        queueOrExecute(context, notificationGenerator);
+        queueOrExecute(context, groupId, notificationGenerator);
     }
 
     public ArrayList<Pair<TalkGroupMember, Long>> membersSortedByLatency(List<TalkGroupMember> members) {
@@ -387,7 +397,7 @@ public class UpdateAgent extends NotificationDeferrer {
                 performCheckAndRequestGroupMemberKeys(groupId);
             }
         };
-        queueOrExecute(context, checker);
+        queueOrExecute(context, groupId, checker);
     }
 
     private void performCheckAndRequestGroupMemberKeys(String groupId) {
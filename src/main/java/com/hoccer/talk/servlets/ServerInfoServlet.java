@@ -24,6 +24,8 @@ public class ServerInfoServlet extends HttpServlet {
         serverInfo.setServerTime(new Date());
         serverInfo.setVersion(server.getConfiguration().getVersion());
         serverInfo.setCommitId(server.getConfiguration().getGitInfo().commitId);
+        serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_TEXT_PROTOCOL_NAME_V3);
+        serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_BINARY_PROTOCOL_NAME_V3);
         serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_TEXT_PROTOCOL_NAME_V2);
         serverInfo.addProtocolVersion(TalkRpcConnectionHandler.TALK_BINARY_PROTOCOL_NAME_V2);
 
@@ -0,0 +1,23 @@
+package com.hoccer.talk.servlets;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hoccer.talk.server.database.InstrumentedDatabase;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+public class SlowQueryServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        InstrumentedDatabase database = (InstrumentedDatabase)getServletContext().getAttribute("instrumentedDatabase");
+
+        ObjectMapper mapper = new ObjectMapper();
+        response.getWriter().print(mapper.writeValueAsString(database.getSlowQueries()));
+    }
+}
@@ -0,0 +1,119 @@
+package com.hoccer.talk.server.database;
+
+import com.hoccer.talk.model.TalkPresence;
+import com.hoccer.talk.model.TalkRelationship;
+import com.hoccer.talk.server.TalkServerConfiguration;
+import com.mongodb.Mongo;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Benchmark for presence lookups against a local mongod
+ * <p/>
+ * Seeds a scratch database with a client that has the given number of
+ * friends and compares the single-query findPresencesChangedAfter()
+ * with the former lookup of one presence per contact.
+ * <p/>
+ * Usage: PresenceQueryBenchmark [contacts] [iterations]
+ * <p/>
+ * The scratch database is dropped afterwards. This lives in the test
+ * tree so it is not shipped with the server, run it from the test
+ * classpath.
+ */
+public class PresenceQueryBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(PresenceQueryBenchmark.class);
+
+    private static final String DATABASE_NAME = "talk-benchmark";
+
+    public static void main(String[] args) throws UnknownHostException {
+        BasicConfigurator.configure();
+        int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        Properties properties = new Properties();
+        properties.setProperty("talk.jongo.db", DATABASE_NAME);
+        TalkServerConfiguration configuration = new TalkServerConfiguration();
+        configuration.configureFromProperties(properties);
+
+        Mongo mongo = new Mongo("localhost");
+        mongo.dropDatabase(DATABASE_NAME);
+        try {
+            JongoDatabase database = new JongoDatabase(configuration, mongo);
+            String clientId = seed(database, contacts);
+            Date lastKnown = new Date(0);
+
+            // warm up both variants
+            for (int i = 0; i < 5; i++) {
+                findOneByOne(database, clientId, lastKnown);
+                database.findPresencesChangedAfter(clientId, lastKnown);
+            }
+
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < iterations; i++) {
+                found = findOneByOne(database, clientId, lastKnown).size();
+            }
+            long oneByOne = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                found = database.findPresencesChangedAfter(clientId, lastKnown).size();
+            }
+            long singleQuery = System.nanoTime() - start;
+
+            LOG.info("contacts:     " + contacts + " (" + found + " presences found)");
+            LOG.info("one by one:   " + (oneByOne / iterations / 1000) + " us per call");
+            LOG.info("single query: " + (singleQuery / iterations / 1000) + " us per call");
+            database.shutdown();
+        } finally {
+            mongo.dropDatabase(DATABASE_NAME);
+            mongo.close();
+        }
+    }
+
+    private static String seed(JongoDatabase database, int contacts) {
+        String clientId = UUID.randomUUID().toString();
+        Date now = new Date();
+        for (int i = 0; i < contacts; i++) {
+            String contactId = UUID.randomUUID().toString();
+
+            TalkRelationship relationship = new TalkRelationship();
+            relationship.setClientId(contactId);
+            relationship.setOtherClientId(clientId);
+            relationship.setState(TalkRelationship.STATE_FRIEND);
+            relationship.setLastChanged(now);
+            database.saveRelationship(relationship);
+
+            TalkPresence presence = new TalkPresence();
+            presence.setClientId(contactId);
+            presence.setTimestamp(now);
+            database.savePresence(presence);
+        }
+        return clientId;
+    }
+
+    /**
+     * The former implementation, fetching the presence of each contact separately
+     */
+    private static List<TalkPresence> findOneByOne(JongoDatabase database, String clientId, Date lastKnown) {
+        List<TalkPresence> res = new ArrayList<TalkPresence>();
+        Set<String> clients = database.getAudienceIndex().getAudience(clientId);
+        for (String client : clients) {
+            TalkPresence presence = database.findPresenceForClient(client);
+            if (presence != null && presence.getTimestamp().after(lastKnown)) {
+                res.add(presence);
+            }
+        }
+        return res;
+    }
+
+}